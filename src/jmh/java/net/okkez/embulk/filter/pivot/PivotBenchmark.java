@@ -0,0 +1,284 @@
+package net.okkez.embulk.filter.pivot;
+
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskSource;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.BufferAllocator;
+import org.embulk.spi.Column;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Type;
+import org.embulk.spi.type.Types;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+import org.msgpack.value.ValueFactory;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PivotBenchmark
+{
+    // Cells per invocation are kept roughly constant so that wide and narrow schemas are comparable.
+    private static final int CELLS_PER_INVOCATION = 200_000;
+
+    // The defaults are a small matrix that runs in a few minutes. See README for the full one.
+    @Param({"1"})
+    public int commonColumns;
+
+    @Param({"10", "1000"})
+    public int expandingColumns;
+
+    @Param({"string", "long", "timestamp"})
+    public String columnType;
+
+    @Param({"0.0", "0.5"})
+    public double nullRatio;
+
+    // Only used by string columns
+    @Param({"16"})
+    public int stringLength;
+
+    // Row-wise path or columnar batch path
+    @Param({"false", "true"})
+    public boolean batch;
+
+    private EmbulkTestRuntime runtime;
+    private PivotFilterPlugin plugin;
+    private Schema inputSchema;
+    private Schema outputSchema;
+    private TaskSource taskSource;
+    private List<Page> pages;
+    private int recordCount;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Rows
+    {
+        public long inputRows;
+        public long outputRows;
+
+        @Setup(Level.Iteration)
+        public void reset()
+        {
+            inputRows = 0;
+            outputRows = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("deprecation")
+    public void setUp()
+    {
+        runtime = new EmbulkTestRuntime();
+        plugin = new PivotFilterPlugin();
+
+        final Type valueType = parseType(columnType);
+        final Schema.Builder schemaBuilder = Schema.builder();
+        final List<String> commonNames = new ArrayList<>();
+        for (int i = 0; i < commonColumns; i++) {
+            String name = "common_" + i;
+            schemaBuilder.add(name, i % 2 == 0 ? Types.STRING : Types.LONG);
+            commonNames.add(name);
+        }
+        for (int i = 0; i < expandingColumns; i++) {
+            schemaBuilder.add("column_" + i, valueType);
+        }
+        inputSchema = schemaBuilder.build();
+
+        ConfigSource config = runtime.getExec().newConfigSource()
+                .set("type", "pivot")
+                .set("common_columns", commonNames)
+                .set("batch", batch)
+                .setNested("value_config", runtime.getExec().newConfigSource()
+                        .set("name", "value")
+                        .set("type", columnType));
+        plugin.transaction(config, inputSchema, (taskSource, outputSchema) -> {
+            this.taskSource = taskSource;
+            this.outputSchema = outputSchema;
+        });
+
+        recordCount = Math.max(1, CELLS_PER_INVOCATION / expandingColumns);
+        pages = buildPages(new Random(1));
+    }
+
+    @Benchmark
+    public void pivot(Rows rows) throws Throwable
+    {
+        final CountingPageOutput sink = new CountingPageOutput();
+        inSession(() -> {
+            PageOutput output = plugin.open(taskSource, inputSchema, outputSchema, sink);
+            for (Page page : pages) {
+                output.add(page);
+            }
+            output.finish();
+            output.close();
+        });
+        rows.inputRows += recordCount;
+        rows.outputRows += sink.records;
+    }
+
+    private void inSession(Runnable action) throws Throwable
+    {
+        runtime.apply(new Statement()
+        {
+            @Override
+            public void evaluate()
+            {
+                action.run();
+            }
+        }, Description.EMPTY).evaluate();
+    }
+
+    @SuppressWarnings("deprecation")
+    private List<Page> buildPages(Random random)
+    {
+        final CollectingPageOutput collector = new CollectingPageOutput();
+        // Input pages are built on heap buffers whose release() is a no-op, so they can be replayed on every invocation.
+        try (PageBuilder builder = new PageBuilder(new HeapBufferAllocator(), inputSchema, collector)) {
+            for (int r = 0; r < recordCount; r++) {
+                for (Column c : inputSchema.getColumns()) {
+                    if (c.getIndex() >= commonColumns && random.nextDouble() < nullRatio) {
+                        builder.setNull(c);
+                    }
+                    else {
+                        setRandomValue(builder, c, random);
+                    }
+                }
+                builder.addRecord();
+            }
+            builder.finish();
+        }
+        return collector.pages;
+    }
+
+    private void setRandomValue(PageBuilder builder, Column c, Random random)
+    {
+        if (Types.STRING.equals(c.getType())) {
+            builder.setString(c, randomString(random));
+        }
+        else if (Types.LONG.equals(c.getType())) {
+            builder.setLong(c, random.nextLong());
+        }
+        else if (Types.DOUBLE.equals(c.getType())) {
+            builder.setDouble(c, random.nextDouble());
+        }
+        else if (Types.BOOLEAN.equals(c.getType())) {
+            builder.setBoolean(c, random.nextBoolean());
+        }
+        else if (Types.TIMESTAMP.equals(c.getType())) {
+            builder.setTimestamp(c, Instant.ofEpochSecond(1600000000L + random.nextInt(100000000), random.nextInt(1000000000)));
+        }
+        else if (Types.JSON.equals(c.getType())) {
+            builder.setJson(c, ValueFactory.newMap(
+                    ValueFactory.newString("id"), ValueFactory.newInteger(random.nextInt()),
+                    ValueFactory.newString("name"), ValueFactory.newString(randomString(random))));
+        }
+    }
+
+    private String randomString(Random random)
+    {
+        final char[] chars = new char[stringLength];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(chars);
+    }
+
+    private static Type parseType(String name)
+    {
+        for (Type type : Arrays.asList(Types.BOOLEAN, Types.LONG, Types.DOUBLE, Types.STRING, Types.TIMESTAMP, Types.JSON)) {
+            if (type.getName().equals(name)) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unknown column type: " + name);
+    }
+
+    @SuppressWarnings("deprecation")
+    private static class HeapBufferAllocator implements BufferAllocator
+    {
+        private static final int DEFAULT_PAGE_SIZE = 32 * 1024;
+
+        @Override
+        public Buffer allocate()
+        {
+            return allocate(DEFAULT_PAGE_SIZE);
+        }
+
+        @Override
+        public Buffer allocate(int minimumCapacity)
+        {
+            return Buffer.allocate(Math.max(minimumCapacity, DEFAULT_PAGE_SIZE));
+        }
+    }
+
+    private static class CollectingPageOutput implements PageOutput
+    {
+        private final List<Page> pages = new ArrayList<>();
+
+        @Override
+        public void add(Page page)
+        {
+            pages.add(page);
+        }
+
+        @Override
+        public void finish()
+        {
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+
+    private static class CountingPageOutput implements PageOutput
+    {
+        private long records;
+
+        @Override
+        public void add(Page page)
+        {
+            records += PageReader.getRecordCount(page);
+            page.release();
+        }
+
+        @Override
+        public void finish()
+        {
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+}
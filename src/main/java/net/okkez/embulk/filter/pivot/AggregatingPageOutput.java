@@ -0,0 +1,337 @@
+package net.okkez.embulk.filter.pivot;
+
+import org.embulk.spi.DataException;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.PriorityQueue;
+
+// Pivots rows to columns (long to wide) without requiring sorted input. Partial records are kept
+// in a GroupTable keyed by the encoded common values. When the table exceeds the memory budget,
+// it is written to a temporary file as a run sorted by key. finish() merges the runs and emits
+// one record per key. Spill files are kept in a directory of the task under temp_dir.
+public class AggregatingPageOutput implements PageOutput
+{
+    private static final Logger log = LoggerFactory.getLogger(AggregatingPageOutput.class);
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+    private final PageReader pageReader;
+    private final PageBuilder pageBuilder;
+    private final ValueCopier[] commonCopiers;
+    private final ValueCopier[] slotCopiers;
+    private final boolean[] filled;
+    private final SpreadSlots slots;
+    private final long memoryBudget;
+    private final Optional<String> tempDir;
+    private final GroupTable table = new GroupTable();
+    private final Bytes keyBytes = new Bytes();
+    private final DataOutputStream keyOut = new DataOutputStream(keyBytes);
+    private final Bytes entryBytes = new Bytes();
+    private final DataOutputStream entryOut = new DataOutputStream(entryBytes);
+    private final BytesInput keyBytesIn = new BytesInput();
+    private final DataInputStream keyIn = new DataInputStream(keyBytesIn);
+    private final BytesInput entryBytesIn = new BytesInput();
+    private final DataInputStream entryIn = new DataInputStream(entryBytesIn);
+    private final List<File> spillFiles = new ArrayList<>();
+    private final PivotMetrics metrics;
+    private final OutputPaging paging;
+    private long spilledBytes;
+    private Path spillDir;
+
+    public AggregatingPageOutput(
+            PivotFilterPlugin.PluginTask task,
+            Schema inputSchema,
+            Schema outputSchema,
+            PageOutput output)
+    {
+        this.pageReader = PageCompat.newPageReader(inputSchema);
+        this.metrics = new PivotMetrics(task.getTransactionId());
+        this.paging = new OutputPaging(task.getOutputPage(), metrics, outputSchema);
+        this.pageBuilder = PageCompat.newPageBuilder(paging, outputSchema, metrics.meter(output));
+
+        final PivotPlan plan = task.getPlan();
+        this.commonCopiers = SpreadPageOutput.buildCommonCopiers(plan);
+        this.slotCopiers = SpreadPageOutput.buildSlotCopiers(task);
+        this.filled = new boolean[slotCopiers.length];
+        this.slots = SpreadSlots.of(plan);
+        this.memoryBudget = task.getMemoryBudget();
+        this.tempDir = task.getTempDir();
+    }
+
+    @Override
+    public void add(Page page)
+    {
+        final long start = System.nanoTime();
+        metrics.startPage(page);
+        pageReader.setPage(page);
+        try {
+            while (pageReader.nextRecord()) {
+                try {
+                    addRecord();
+                }
+                catch (DataException e) {
+                    metrics.recordError(log, e);
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        metrics.addNanos += System.nanoTime() - start;
+    }
+
+    private void addRecord() throws IOException
+    {
+        final int slot = slots.lookup(pageReader);
+        if (slot == SpreadSlots.NONE) {
+            metrics.skipped++;
+            return;
+        }
+
+        keyBytes.reset();
+        for (ValueCopier common : commonCopiers) {
+            common.load(pageReader);
+            common.encode(keyOut);
+        }
+        entryBytes.reset();
+        entryOut.writeShort(slot);
+        slotCopiers[slot].load(pageReader);
+        slotCopiers[slot].encode(entryOut);
+
+        final GroupTable.Group group = table.getOrCreate(keyBytes.array(), keyBytes.size());
+        table.append(group, entryBytes.array(), entryBytes.size());
+        if (table.getMemoryBytes() > memoryBudget) {
+            spill();
+        }
+    }
+
+    private void spill() throws IOException
+    {
+        // Exec.getTempFileSpace() is not available in Embulk 0.11
+        if (spillDir == null) {
+            spillDir = tempDir.isPresent()
+                    ? Files.createTempDirectory(Files.createDirectories(Paths.get(tempDir.get())), "embulk-pivot-")
+                    : Files.createTempDirectory("embulk-pivot-");
+        }
+        final File file = Files.createTempFile(spillDir, "pivot-spill", ".bin").toFile();
+        spillFiles.add(file);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), IO_BUFFER_SIZE))) {
+            for (GroupTable.Group g : table.sortedGroups()) {
+                out.writeInt(g.key.length);
+                out.write(g.key);
+                out.writeInt(g.length);
+                out.write(g.entries, 0, g.length);
+            }
+            spilledBytes += out.size();
+        }
+        log.debug("Spilled {} groups to {}", table.size(), file);
+        table.clear();
+    }
+
+    @Override
+    public void finish()
+    {
+        try {
+            if (spillFiles.isEmpty()) {
+                for (GroupTable.Group g : table.sortedGroups()) {
+                    emit(g.key, g.entries, g.length);
+                }
+                table.clear();
+            }
+            else {
+                if (table.size() > 0) {
+                    spill();
+                }
+                merge();
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        pageBuilder.finish();
+        if (metrics.skipped > 0) {
+            log.info("Ignored {} rows whose key is null or not declared", metrics.skipped);
+        }
+        if (!spillFiles.isEmpty()) {
+            log.info("Spilled {} bytes into {} files", spilledBytes, spillFiles.size());
+        }
+        metrics.finish(log);
+    }
+
+    private void merge() throws IOException
+    {
+        final List<Run> runs = new ArrayList<>();
+        final PriorityQueue<Run> queue = new PriorityQueue<>((a, b) -> {
+            final int c = GroupTable.compare(a.key, a.key.length, b.key, b.key.length);
+            return c != 0 ? c : Integer.compare(a.index, b.index);
+        });
+        try {
+            for (File file : spillFiles) {
+                final Run run = new Run(runs.size(), file);
+                runs.add(run);
+                if (run.next()) {
+                    queue.add(run);
+                }
+            }
+            final Bytes merged = new Bytes();
+            while (!queue.isEmpty()) {
+                final byte[] key = queue.peek().key;
+                merged.reset();
+                // Runs are ordered by spill time for equal keys, so later entries override earlier ones.
+                while (!queue.isEmpty() && GroupTable.compare(queue.peek().key, queue.peek().key.length, key, key.length) == 0) {
+                    final Run run = queue.poll();
+                    merged.write(run.entries, 0, run.entries.length);
+                    if (run.next()) {
+                        queue.add(run);
+                    }
+                }
+                emit(key, merged.array(), merged.size());
+            }
+        }
+        finally {
+            for (Run run : runs) {
+                run.close();
+            }
+        }
+    }
+
+    private void emit(byte[] key, byte[] entries, int length) throws IOException
+    {
+        keyBytesIn.wrap(key, key.length);
+        for (ValueCopier common : commonCopiers) {
+            common.decode(keyIn);
+            common.write(pageBuilder);
+        }
+        entryBytesIn.wrap(entries, length);
+        while (entryBytesIn.available() > 0) {
+            final int slot = entryIn.readShort();
+            slotCopiers[slot].decode(entryIn);
+            filled[slot] = true;
+        }
+        for (int i = 0; i < slotCopiers.length; i++) {
+            if (filled[i]) {
+                slotCopiers[i].write(pageBuilder);
+                filled[i] = false;
+            }
+            else {
+                pageBuilder.setNull(slotCopiers[i].outputIndex);
+            }
+        }
+        pageBuilder.addRecord();
+        paging.recordAdded(pageBuilder);
+    }
+
+    int getSpillFileCount()
+    {
+        return spillFiles.size();
+    }
+
+    long getSpilledBytes()
+    {
+        return spilledBytes;
+    }
+
+    @Override
+    public void close()
+    {
+        for (File file : spillFiles) {
+            if (file.exists() && !file.delete()) {
+                log.warn("Failed to delete spill file {}", file);
+            }
+        }
+        if (spillDir != null) {
+            try {
+                Files.deleteIfExists(spillDir);
+            }
+            catch (IOException e) {
+                log.warn("Failed to delete spill directory {}", spillDir, e);
+            }
+        }
+        pageReader.close();
+        pageBuilder.close();
+    }
+
+    private static final class Bytes extends ByteArrayOutputStream
+    {
+        byte[] array()
+        {
+            return buf;
+        }
+    }
+
+    // Reads one group at a time without allocating a stream per group
+    private static final class BytesInput extends ByteArrayInputStream
+    {
+        BytesInput()
+        {
+            super(new byte[0]);
+        }
+
+        void wrap(byte[] bytes, int length)
+        {
+            buf = bytes;
+            pos = 0;
+            count = length;
+            mark = 0;
+        }
+    }
+
+    private static final class Run implements Closeable
+    {
+        private final int index;
+        private final DataInputStream in;
+        private byte[] key;
+        private byte[] entries;
+
+        Run(int index, File file) throws IOException
+        {
+            this.index = index;
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), IO_BUFFER_SIZE));
+        }
+
+        boolean next() throws IOException
+        {
+            final int keyLength;
+            try {
+                keyLength = in.readInt();
+            }
+            catch (EOFException e) {
+                return false;
+            }
+            key = new byte[keyLength];
+            in.readFully(key);
+            entries = new byte[in.readInt()];
+            in.readFully(entries);
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            in.close();
+        }
+    }
+}
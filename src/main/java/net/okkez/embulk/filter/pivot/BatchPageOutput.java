@@ -0,0 +1,230 @@
+package net.okkez.embulk.filter.pivot;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+
+// Pivots columns to rows (wide to long) a page at a time. Every record of the input page is decoded
+// into per-column primitive buffers first, together with a bitmap of the skipped cells, and the
+// output rows are then generated from the buffers without going back to the PageReader.
+// With group_keys, records are buffered across pages up to a window and the rows of the window
+// are emitted key by key.
+public class BatchPageOutput implements PageOutput
+{
+    private static final Logger log = LoggerFactory.getLogger(BatchPageOutput.class);
+    private final PageReader pageReader;
+    private final PageBuilder pageBuilder;
+    private final ColumnBatch[] commonBatches;
+    private final ColumnBatch[] valueBatches;
+    private final CellPredicate[] skipPredicates;
+    private final long[][] skippedCells;
+    private final int[] valueIndexes;
+    private final int[][] nullValueIndexes;
+    private final String[] keyLabels;
+    private final long[] keyCodes;
+    private final int keyIndex;
+    private final PivotMetrics metrics;
+    private final OutputPaging paging;
+    private final boolean groupKeys;
+    private final int windowRecords;
+    private final long windowBytes;
+    private int rows;
+    private long bytes;
+
+    public BatchPageOutput(
+            PivotFilterPlugin.PluginTask task,
+            Schema inputSchema,
+            Schema outputSchema,
+            PageOutput output)
+    {
+        this.pageReader = PageCompat.newPageReader(inputSchema);
+        this.metrics = new PivotMetrics(task.getTransactionId());
+        this.paging = new OutputPaging(task.getOutputPage(), metrics, outputSchema);
+        this.pageBuilder = PageCompat.newPageBuilder(paging, outputSchema, metrics.meter(output));
+
+        final PivotFilterPlugin.GroupKeysTask window = task.getGroupKeys();
+        this.groupKeys = window.getWindowRecords() > 0 || window.getWindowBytes() > 0;
+        this.windowRecords = window.getWindowRecords();
+        this.windowBytes = window.getWindowBytes();
+
+        final PivotPlan plan = task.getPlan();
+        final List<Column> commonColumns = plan.getCommonColumns();
+        final List<Column> expandingColumns = plan.getExpandingColumns();
+        final StringPool stringPool = new StringPool(FilteredPageOutput.STRING_POOL_SIZE);
+        this.commonBatches = new ColumnBatch[commonColumns.size()];
+        for (int i = 0; i < commonBatches.length; i++) {
+            commonBatches[i] = ColumnBatch.of(commonColumns.get(i), stringPool);
+        }
+        this.keyIndex = plan.getKeyIndex();
+        this.keyLabels = plan.getKeyLabels() == null ? null : plan.getKeyLabels().toArray(new String[0]);
+        this.keyCodes = plan.getKeyCodes() == null ? null : plan.getKeyCodes().stream().mapToLong(Long::longValue).toArray();
+        this.valueBatches = new ColumnBatch[expandingColumns.size()];
+        this.skipPredicates = new CellPredicate[expandingColumns.size()];
+        this.skippedCells = new long[expandingColumns.size()][];
+        this.valueIndexes = new int[expandingColumns.size()];
+        this.nullValueIndexes = new int[expandingColumns.size()][];
+        for (int i = 0; i < valueBatches.length; i++) {
+            final Column source = expandingColumns.get(i);
+            final Column target = FilteredPageOutput.findValueColumn(task.getValueMode(), plan.getValueColumns(), source);
+            valueBatches[i] = ColumnBatch.of(source, null);
+            valueIndexes[i] = target.getIndex();
+            nullValueIndexes[i] = plan.getValueColumns().stream()
+                    .mapToInt(Column::getIndex)
+                    .filter(index -> index != target.getIndex())
+                    .toArray();
+            skipPredicates[i] = Where.skipUnless(SkipValues.build(task.getSkipValues(), source),
+                    Where.build(task.getWhere().getValues(), source));
+            if (skipPredicates[i] != null) {
+                skippedCells[i] = new long[0];
+            }
+        }
+    }
+
+    @Override
+    public void add(Page page)
+    {
+        final long start = System.nanoTime();
+        metrics.startPage(page);
+        final int records = PageReader.getRecordCount(page);
+        final long bytesPerRecord = records == 0 ? 0 : estimateBytes(page) / records;
+        ensureCapacity(windowRecords > 0 ? Math.min(rows + records, windowRecords) : rows + records);
+        pageReader.setPage(page);
+        while (pageReader.nextRecord()) {
+            decode(rows);
+            rows++;
+            bytes += bytesPerRecord;
+            if ((windowRecords > 0 && rows >= windowRecords) || (windowBytes > 0 && bytes >= windowBytes)) {
+                emit();
+            }
+        }
+        if (!groupKeys) {
+            emit();
+        }
+        metrics.addNanos += System.nanoTime() - start;
+    }
+
+    private void ensureCapacity(int capacity)
+    {
+        for (ColumnBatch batch : commonBatches) {
+            batch.ensureCapacity(capacity);
+        }
+        for (int i = 0; i < valueBatches.length; i++) {
+            valueBatches[i].ensureCapacity(capacity);
+            if (skippedCells[i] != null && skippedCells[i].length * 64 < capacity) {
+                skippedCells[i] = Arrays.copyOf(skippedCells[i], (capacity + 63) >>> 6);
+            }
+        }
+    }
+
+    private void decode(int row)
+    {
+        for (ColumnBatch batch : commonBatches) {
+            batch.load(pageReader, row);
+        }
+        for (int i = 0; i < valueBatches.length; i++) {
+            final long[] skipped = skippedCells[i];
+            if (skipped != null && skipPredicates[i].test(pageReader)) {
+                skipped[row >>> 6] |= 1L << row;
+                continue;
+            }
+            if (skipped != null) {
+                skipped[row >>> 6] &= ~(1L << row);
+            }
+            valueBatches[i].load(pageReader, row);
+        }
+    }
+
+    // Emits the buffered records record by record, or key by key when group_keys is enabled.
+    private void emit()
+    {
+        if (groupKeys) {
+            for (int i = 0; i < valueBatches.length; i++) {
+                for (int row = 0; row < rows; row++) {
+                    emitRow(row, i);
+                }
+            }
+        }
+        else {
+            for (int row = 0; row < rows; row++) {
+                for (int i = 0; i < valueBatches.length; i++) {
+                    emitRow(row, i);
+                }
+            }
+        }
+        for (ColumnBatch batch : commonBatches) {
+            batch.clear(rows);
+        }
+        for (ColumnBatch batch : valueBatches) {
+            batch.clear(rows);
+        }
+        rows = 0;
+        bytes = 0;
+    }
+
+    private void emitRow(int row, int i)
+    {
+        final long[] skipped = skippedCells[i];
+        if (skipped != null && (skipped[row >>> 6] & (1L << row)) != 0) {
+            metrics.skipped++;
+            return;
+        }
+        for (int c = 0; c < commonBatches.length; c++) {
+            commonBatches[c].write(pageBuilder, c, row);
+        }
+        if (keyCodes != null) {
+            pageBuilder.setLong(keyIndex, keyCodes[i]); // key
+        }
+        else {
+            pageBuilder.setString(keyIndex, keyLabels[i]); // key
+        }
+        valueBatches[i].write(pageBuilder, valueIndexes[i], row); // value
+        for (int index : nullValueIndexes[i]) {
+            pageBuilder.setNull(index);
+        }
+        pageBuilder.addRecord();
+        paging.recordAdded(pageBuilder);
+    }
+
+    // Size of the page with its strings, used to bound the window by bytes.
+    private static long estimateBytes(Page page)
+    {
+        long bytes = page.buffer().limit();
+        for (String s : page.getStringReferences()) {
+            bytes += 2L * s.length();
+        }
+        return bytes;
+    }
+
+    long getSkippedCells()
+    {
+        return metrics.skipped;
+    }
+
+    @Override
+    public void finish()
+    {
+        final long start = System.nanoTime();
+        emit();
+        metrics.addNanos += System.nanoTime() - start;
+        pageBuilder.finish();
+        if (metrics.skipped > 0) {
+            log.info("Skipped {} cells by skip_values or where", metrics.skipped);
+        }
+        metrics.finish(log);
+    }
+
+    @Override
+    public void close()
+    {
+        pageReader.close();
+        pageBuilder.close();
+    }
+}
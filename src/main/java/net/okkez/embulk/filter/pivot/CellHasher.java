@@ -0,0 +1,9 @@
+package net.okkez.embulk.filter.pivot;
+
+import org.embulk.spi.PageReader;
+
+// Hashes one cell of the current input record. Implementations are bound to a column at construction.
+interface CellHasher
+{
+    long hash(PageReader pageReader);
+}
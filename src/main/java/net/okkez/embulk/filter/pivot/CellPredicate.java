@@ -0,0 +1,9 @@
+package net.okkez.embulk.filter.pivot;
+
+import org.embulk.spi.PageReader;
+
+// Tests one cell of the current input record. Implementations are bound to a column at construction.
+interface CellPredicate
+{
+    boolean test(PageReader pageReader);
+}
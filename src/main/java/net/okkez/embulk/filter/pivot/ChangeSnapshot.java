@@ -0,0 +1,497 @@
+package net.okkez.embulk.filter.pivot;
+
+import net.okkez.embulk.filter.pivot.PivotFilterPlugin.ChangesTask;
+import org.embulk.config.ConfigException;
+import org.msgpack.value.ValueFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+// Fingerprints of the cells emitted by the previous run, in open-addressing hash tables stored in a
+// memory-mapped file, so the tables can be larger than the heap. A cell slot holds the entity hash (of
+// the common columns), the key hash and a value fingerprint. An entity slot holds the position of a
+// record with the common columns of the entity as a JSON object, shared by all its cells. Records are
+// appended to the file after the tables, followed by the keys of the cells. 0 marks an empty slot or an
+// absent value.
+//
+// A transaction writes a new snapshot holding the cells seen by the run, and reads the previous one in
+// place: a cell is looked up there the first time the run sees it. Cells of the previous run that this
+// run did not see are written to deletes_path at commit, because a filter cannot emit rows after its
+// tasks. The new snapshot replaces the previous one only when all tasks succeed.
+//
+// The tables are split into partitions with a lock each, so that tasks rarely wait for each other.
+final class ChangeSnapshot
+{
+    private static final Logger log = LoggerFactory.getLogger(ChangeSnapshot.class);
+    private static final Map<Path, ChangeSnapshot> open = new ConcurrentHashMap<>();
+    private static final long MAGIC = 0x5049565453535633L; // "PIVTSSV3"
+    private static final int HEADER_BYTES = 32;
+    private static final int CELL_BYTES = 24;
+    private static final int ENTITY_BYTES = 16;
+    private static final int SEGMENT_SHIFT = 25; // 32M slots per mapping
+    private static final int PARTITION_BITS = 6;
+    private static final double MAX_LOAD = 0.9;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final Table cells;
+    private final Table entities;
+    private final Map<Long, String> keys;
+    private final long cellCount;
+    private final AtomicLong recordsEnd;
+    private ChangeSnapshot previous;
+    private String keyName;
+    private boolean committed;
+
+    private ChangeSnapshot(Path path, FileChannel channel, FileChannel.MapMode mode, long slots, Map<Long, String> keys, long cellCount) throws IOException
+    {
+        this.path = path;
+        this.channel = channel;
+        this.cells = new Table(channel, mode, HEADER_BYTES, slots, CELL_BYTES);
+        this.entities = new Table(channel, mode, HEADER_BYTES + slots * CELL_BYTES, slots, ENTITY_BYTES);
+        this.keys = keys;
+        this.cellCount = cellCount;
+        this.recordsEnd = new AtomicLong(HEADER_BYTES + slots * (CELL_BYTES + ENTITY_BYTES));
+    }
+
+    // Creates an empty snapshot for a transaction and opens the snapshot of the previous run read-only.
+    // The previous snapshot keeps its own capacity, so nothing is copied or rehashed here.
+    static ChangeSnapshot begin(ChangesTask task, String keyName, PivotPlan plan)
+    {
+        final String snapshotPath = task.getSnapshotPath().get();
+        if (task.getCapacity() <= 0) {
+            throw new ConfigException("changes.capacity must be positive");
+        }
+        final Path snapshot = Paths.get(snapshotPath);
+        final Path work = workPath(snapshotPath);
+        final long slots = Long.highestOneBit(Math.max(1024, task.getCapacity() * 2 - 1)) << 1;
+        ChangeSnapshot previous = null;
+        try {
+            final Map<Long, String> keys = new HashMap<>();
+            if (Files.exists(snapshot)) {
+                previous = openPrevious(snapshot);
+                keys.putAll(previous.keys);
+                log.info("Change snapshot {} has {} cells", snapshot, previous.cellCount);
+            }
+            for (int i = 0; i < plan.getExpandingColumns().size(); i++) {
+                keys.put(keyHash(plan, i), plan.getKeyCodes() != null
+                        ? ValueFactory.newInteger(plan.getKeyCodes().get(i)).toJson()
+                        : ValueFactory.newString(plan.getKeyLabels().get(i)).toJson());
+            }
+            Files.deleteIfExists(work);
+            final FileChannel channel = FileChannel.open(work, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            final ChangeSnapshot table = new ChangeSnapshot(work, channel, FileChannel.MapMode.READ_WRITE, slots, keys, 0);
+            table.previous = previous;
+            table.keyName = keyName;
+            open.put(work, table);
+            return table;
+        }
+        catch (IOException e) {
+            if (previous != null) {
+                try {
+                    previous.closeChannel();
+                }
+                catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+            }
+            throw new ConfigException("Cannot prepare change snapshot " + snapshotPath + ": " + e.getMessage(), e);
+        }
+    }
+
+    // The working copy shared by the tasks of this JVM. Tasks in other processes are rejected, because the
+    // table is neither locked across processes nor available on other hosts.
+    static ChangeSnapshot forTask(String snapshotPath)
+    {
+        final ChangeSnapshot shared = open.get(workPath(snapshotPath));
+        if (shared == null) {
+            throw new ConfigException("changes requires the local executor, which runs the tasks in the process of the transaction");
+        }
+        return shared;
+    }
+
+    // The hash of the key of an expanding column, as stored in the cell slots
+    static long keyHash(PivotPlan plan, int i)
+    {
+        return Fingerprints.string(plan.getKeyCodes() != null ? Long.toString(plan.getKeyCodes().get(i)) : plan.getKeyLabels().get(i));
+    }
+
+    // Stores the fingerprint of a cell seen by this run and returns the one of the previous run. 0 means
+    // that the value is absent.
+    long exchange(long entity, long key, long fingerprint)
+    {
+        final long hash = spread(Fingerprints.mix(entity, key));
+        synchronized (cells.lock(hash)) {
+            final long slot = findCell(cells, hash, entity, key);
+            if (cells.get(slot, 0) != 0) {
+                final long seen = cells.get(slot, 16);
+                cells.put(slot, 16, fingerprint);
+                return seen;
+            }
+            final long last = previous == null ? 0 : previous.fingerprint(hash, entity, key);
+            // A cell without a value in both runs is not stored. A cell whose value is gone is stored, so
+            // that it is not deleted again at commit.
+            if (last != 0 || fingerprint != 0) {
+                cells.claim(slot, path);
+                cells.put(slot, 0, entity);
+                cells.put(slot, 8, key);
+                cells.put(slot, 16, fingerprint);
+            }
+            return last;
+        }
+    }
+
+    // Stores the common columns of an entity with a value in this run, unless they are stored. The record of
+    // the previous run is copied when there is one, so the JSON is built only for new entities.
+    void describe(long entity, Supplier<String> json)
+    {
+        final long hash = spread(entity);
+        synchronized (entities.lock(hash)) {
+            final long slot = findEntity(entities, hash, entity);
+            if (entities.get(slot, 0) != 0) {
+                return;
+            }
+            try {
+                final byte[] record = previous == null ? null : previous.entityRecord(hash, entity);
+                final long position = appendRecord(record != null ? record : json.get().getBytes(StandardCharsets.UTF_8));
+                entities.claim(slot, path);
+                entities.put(slot, 0, entity);
+                entities.put(slot, 8, position);
+            }
+            catch (IOException e) {
+                throw new IllegalStateException("Cannot write change snapshot " + path, e);
+            }
+        }
+    }
+
+    // Writes the cells with a value in the previous run that this run did not see to deletes_path, flushes
+    // the new snapshot and replaces the previous one with it.
+    synchronized void commit(ChangesTask task) throws IOException
+    {
+        final BufferedWriter deletes = task.getDeletesPath().isPresent()
+                ? Files.newBufferedWriter(Paths.get(task.getDeletesPath().get()), StandardCharsets.UTF_8) : null;
+        long deleted = 0;
+        try {
+            if (previous != null) {
+                deleted = previous.sweep(this, deletes, ValueFactory.newString(keyName).toJson() + ":",
+                        "," + ValueFactory.newString(task.getChangeColumn()).toJson() + ":\"delete\"}");
+            }
+        }
+        finally {
+            if (deletes != null) {
+                deletes.close();
+            }
+        }
+        final long keysPosition = appendRecord(encodeKeys(keys));
+        cells.force();
+        entities.force();
+        writeHeader(channel, cells.slots, keysPosition, cells.count());
+        channel.force(true);
+        channel.close();
+        if (previous != null) {
+            previous.closeChannel();
+        }
+        Files.move(path, Paths.get(task.getSnapshotPath().get()), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        committed = true;
+        log.info("Saved change snapshot {} with {} cells. {} cells were not seen by this run and are deleted",
+                task.getSnapshotPath().get(), cells.count(), deleted);
+    }
+
+    // Releases the snapshots at the end of the transaction. The new one is deleted unless it has been committed.
+    synchronized void close()
+    {
+        open.remove(path, this);
+        try {
+            closeChannel();
+            if (previous != null) {
+                previous.closeChannel();
+            }
+            if (!committed) {
+                Files.deleteIfExists(path);
+            }
+        }
+        catch (IOException e) {
+            log.warn("Cannot clean up change snapshot {}", path, e);
+        }
+    }
+
+    // Called on the previous snapshot. Writes a delete line for each cell with a value that the run did not see.
+    private long sweep(ChangeSnapshot run, BufferedWriter deletes, String keyField, String changeField) throws IOException
+    {
+        long deleted = 0;
+        for (long slot = 0; slot < cells.slots; slot++) {
+            final long entity = cells.get(slot, 0);
+            if (entity == 0 || cells.get(slot, 16) == 0) {
+                continue;
+            }
+            final long key = cells.get(slot, 8);
+            if (run.cells.get(findCell(run.cells, spread(Fingerprints.mix(entity, key)), entity, key), 0) != 0) {
+                continue;
+            }
+            deleted++;
+            final byte[] record = deletes == null ? null : entityRecord(spread(entity), entity);
+            if (record != null) {
+                final String json = new String(record, StandardCharsets.UTF_8);
+                deletes.write(json, 0, json.length() - 1);
+                if (json.length() > 2) {
+                    deletes.write(',');
+                }
+                deletes.write(keyField);
+                deletes.write(run.keys.getOrDefault(key, "null"));
+                deletes.write(changeField);
+                deletes.newLine();
+            }
+        }
+        return deleted;
+    }
+
+    private long fingerprint(long hash, long entity, long key)
+    {
+        final long slot = findCell(cells, hash, entity, key);
+        return cells.get(slot, 0) == 0 ? 0 : cells.get(slot, 16);
+    }
+
+    private byte[] entityRecord(long hash, long entity) throws IOException
+    {
+        final long slot = findEntity(entities, hash, entity);
+        return entities.get(slot, 0) == 0 ? null : readRecord(channel, entities.get(slot, 8));
+    }
+
+    // The slot holding the cell, or the empty slot where it would be inserted
+    private static long findCell(Table table, long hash, long entity, long key)
+    {
+        long slot = table.home(hash);
+        while (true) {
+            final long stored = table.get(slot, 0);
+            if (stored == 0 || (stored == entity && table.get(slot, 8) == key)) {
+                return slot;
+            }
+            slot = table.next(slot);
+        }
+    }
+
+    private static long findEntity(Table table, long hash, long entity)
+    {
+        long slot = table.home(hash);
+        while (true) {
+            final long stored = table.get(slot, 0);
+            if (stored == 0 || stored == entity) {
+                return slot;
+            }
+            slot = table.next(slot);
+        }
+    }
+
+    private long appendRecord(byte[] bytes) throws IOException
+    {
+        final long position = recordsEnd.getAndAdd(4 + bytes.length);
+        final ByteBuffer buffer = ByteBuffer.allocate(4 + bytes.length);
+        buffer.putInt(bytes.length).put(bytes).flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+        return position;
+    }
+
+    private static byte[] readRecord(FileChannel channel, long position) throws IOException
+    {
+        final ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(channel, length, position);
+        final ByteBuffer bytes = ByteBuffer.allocate(length.getInt(0));
+        readFully(channel, bytes, position + 4);
+        return bytes.array();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Broken change snapshot record at " + position);
+            }
+        }
+    }
+
+    private static byte[] encodeKeys(Map<Long, String> keys) throws IOException
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(keys.size());
+            for (Map.Entry<Long, String> key : keys.entrySet()) {
+                out.writeLong(key.getKey());
+                out.writeUTF(key.getValue());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Map<Long, String> decodeKeys(byte[] record) throws IOException
+    {
+        final Map<Long, String> keys = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                keys.put(in.readLong(), in.readUTF());
+            }
+        }
+        return keys;
+    }
+
+    private void closeChannel() throws IOException
+    {
+        if (channel.isOpen()) {
+            channel.close();
+        }
+    }
+
+    private static Path workPath(String snapshotPath)
+    {
+        return Paths.get(snapshotPath + ".work");
+    }
+
+    private static long spread(long key)
+    {
+        return key ^ (key >>> 29) ^ (key >>> 47);
+    }
+
+    private static ChangeSnapshot openPrevious(Path file) throws IOException
+    {
+        final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            if (channel.size() < HEADER_BYTES) {
+                throw new IOException("Not a change snapshot: " + file);
+            }
+            readFully(channel, header, 0);
+            header.flip();
+            if (header.getLong() != MAGIC) {
+                throw new IOException("Not a change snapshot: " + file);
+            }
+            final long slots = header.getLong();
+            final long keysPosition = header.getLong();
+            final long cellCount = header.getLong();
+            if (slots < (1 << PARTITION_BITS) || Long.bitCount(slots) != 1 || channel.size() < HEADER_BYTES + slots * (CELL_BYTES + ENTITY_BYTES)) {
+                throw new IOException("Broken change snapshot: " + file);
+            }
+            return new ChangeSnapshot(file, channel, FileChannel.MapMode.READ_ONLY, slots, decodeKeys(readRecord(channel, keysPosition)), cellCount);
+        }
+        catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static void writeHeader(FileChannel channel, long slots, long keysPosition, long cellCount) throws IOException
+    {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putLong(MAGIC).putLong(slots).putLong(keysPosition).putLong(cellCount).flip();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+    }
+
+    // An open-addressing hash table of fixed-size slots in the file. The slots are split into partitions by
+    // the high bits of the hash, and a key probes only its partition, so each partition is locked separately.
+    private static final class Table
+    {
+        private final MappedByteBuffer[] segments;
+        private final long slots;
+        private final int slotBytes;
+        private final long partitionMask;
+        private final long maxUsed;
+        private final Object[] locks = new Object[1 << PARTITION_BITS];
+        private final long[] used = new long[1 << PARTITION_BITS];
+
+        Table(FileChannel channel, FileChannel.MapMode mode, long position, long slots, int slotBytes) throws IOException
+        {
+            this.slots = slots;
+            this.slotBytes = slotBytes;
+            this.partitionMask = (slots >>> PARTITION_BITS) - 1;
+            this.maxUsed = (long) ((partitionMask + 1) * MAX_LOAD);
+            final long segmentSlots = Math.min(slots, 1L << SEGMENT_SHIFT);
+            this.segments = new MappedByteBuffer[(int) (slots / segmentSlots)];
+            for (int i = 0; i < segments.length; i++) {
+                segments[i] = channel.map(mode, position + i * segmentSlots * slotBytes, segmentSlots * slotBytes);
+            }
+            for (int i = 0; i < locks.length; i++) {
+                locks[i] = new Object();
+            }
+        }
+
+        Object lock(long hash)
+        {
+            return locks[(int) (hash >>> (64 - PARTITION_BITS))];
+        }
+
+        long home(long hash)
+        {
+            return (hash >>> (64 - PARTITION_BITS)) * (partitionMask + 1) + (hash & partitionMask);
+        }
+
+        long next(long slot)
+        {
+            return (slot & ~partitionMask) | ((slot + 1) & partitionMask);
+        }
+
+        // Counts a slot that is about to be filled. The caller holds the lock of its partition.
+        void claim(long slot, Path path)
+        {
+            final int partition = (int) (slot / (partitionMask + 1));
+            if (used[partition] >= maxUsed) {
+                throw new IllegalStateException(String.format(
+                        "Change snapshot %s is full. Increase changes.capacity", path));
+            }
+            used[partition]++;
+        }
+
+        long count()
+        {
+            long count = 0;
+            for (long u : used) {
+                count += u;
+            }
+            return count;
+        }
+
+        long get(long slot, int field)
+        {
+            return segments[(int) (slot >>> SEGMENT_SHIFT)].getLong(offset(slot) + field);
+        }
+
+        void put(long slot, int field, long value)
+        {
+            segments[(int) (slot >>> SEGMENT_SHIFT)].putLong(offset(slot) + field, value);
+        }
+
+        void force()
+        {
+            for (MappedByteBuffer segment : segments) {
+                segment.force();
+            }
+        }
+
+        private int offset(long slot)
+        {
+            return (int) ((slot & ((1L << SEGMENT_SHIFT) - 1)) * slotBytes);
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package net.okkez.embulk.filter.pivot;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.ColumnVisitor;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageReader;
+import org.msgpack.value.Value;
+
+import java.time.Instant;
+import java.util.Arrays;
+
+// Values of one input column for the records of a page or a window of pages, kept in primitive arrays
+// with a null bitmap. The arrays grow to the largest batch seen and are reused for the following ones.
+abstract class ColumnBatch
+{
+    protected final Column source;
+    private long[] nulls = new long[0];
+
+    ColumnBatch(Column source)
+    {
+        this.source = source;
+    }
+
+    final void ensureCapacity(int rows)
+    {
+        if (nulls.length * 64 < rows) {
+            nulls = Arrays.copyOf(nulls, (rows + 63) >>> 6);
+        }
+        if (capacity() < rows) {
+            grow(Math.max(rows, capacity() * 2));
+        }
+    }
+
+    final void load(PageReader pageReader, int row)
+    {
+        if (pageReader.isNull(source)) {
+            nulls[row >>> 6] |= 1L << row;
+        }
+        else {
+            nulls[row >>> 6] &= ~(1L << row);
+            loadValue(pageReader, row);
+        }
+    }
+
+    final boolean isNull(int row)
+    {
+        return (nulls[row >>> 6] & (1L << row)) != 0;
+    }
+
+    final void write(PageBuilder pageBuilder, int outputIndex, int row)
+    {
+        if (isNull(row)) {
+            pageBuilder.setNull(outputIndex);
+        }
+        else {
+            writeValue(pageBuilder, outputIndex, row);
+        }
+    }
+
+    // Drops references to objects of the page, so they can be collected before the next page is loaded.
+    void clear(int rows)
+    {
+    }
+
+    protected abstract int capacity();
+
+    protected abstract void grow(int capacity);
+
+    protected abstract void loadValue(PageReader pageReader, int row);
+
+    protected abstract void writeValue(PageBuilder pageBuilder, int outputIndex, int row);
+
+    static ColumnBatch of(Column source, StringPool stringPool)
+    {
+        final ColumnBatch[] resolved = new ColumnBatch[1];
+        source.visit(new ColumnVisitor()
+        {
+            @Override
+            public void booleanColumn(Column column)
+            {
+                resolved[0] = new BooleanBatch(column);
+            }
+
+            @Override
+            public void longColumn(Column column)
+            {
+                resolved[0] = new LongBatch(column);
+            }
+
+            @Override
+            public void doubleColumn(Column column)
+            {
+                resolved[0] = new DoubleBatch(column);
+            }
+
+            @Override
+            public void stringColumn(Column column)
+            {
+                resolved[0] = new StringBatch(column, stringPool);
+            }
+
+            @Override
+            public void timestampColumn(Column column)
+            {
+                resolved[0] = new TimestampBatch(column);
+            }
+
+            @Override
+            public void jsonColumn(Column column)
+            {
+                resolved[0] = new JsonBatch(column);
+            }
+        });
+        return resolved[0];
+    }
+
+    private static final class BooleanBatch extends ColumnBatch
+    {
+        private boolean[] values = new boolean[0];
+
+        BooleanBatch(Column source)
+        {
+            super(source);
+        }
+
+        @Override
+        protected int capacity()
+        {
+            return values.length;
+        }
+
+        @Override
+        protected void grow(int capacity)
+        {
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        @Override
+        protected void loadValue(PageReader pageReader, int row)
+        {
+            values[row] = pageReader.getBoolean(source);
+        }
+
+        @Override
+        protected void writeValue(PageBuilder pageBuilder, int outputIndex, int row)
+        {
+            pageBuilder.setBoolean(outputIndex, values[row]);
+        }
+    }
+
+    private static final class LongBatch extends ColumnBatch
+    {
+        private long[] values = new long[0];
+
+        LongBatch(Column source)
+        {
+            super(source);
+        }
+
+        @Override
+        protected int capacity()
+        {
+            return values.length;
+        }
+
+        @Override
+        protected void grow(int capacity)
+        {
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        @Override
+        protected void loadValue(PageReader pageReader, int row)
+        {
+            values[row] = pageReader.getLong(source);
+        }
+
+        @Override
+        protected void writeValue(PageBuilder pageBuilder, int outputIndex, int row)
+        {
+            pageBuilder.setLong(outputIndex, values[row]);
+        }
+    }
+
+    private static final class DoubleBatch extends ColumnBatch
+    {
+        private double[] values = new double[0];
+
+        DoubleBatch(Column source)
+        {
+            super(source);
+        }
+
+        @Override
+        protected int capacity()
+        {
+            return values.length;
+        }
+
+        @Override
+        protected void grow(int capacity)
+        {
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        @Override
+        protected void loadValue(PageReader pageReader, int row)
+        {
+            values[row] = pageReader.getDouble(source);
+        }
+
+        @Override
+        protected void writeValue(PageBuilder pageBuilder, int outputIndex, int row)
+        {
+            pageBuilder.setDouble(outputIndex, values[row]);
+        }
+    }
+
+    private static final class StringBatch extends ColumnBatch
+    {
+        private final StringPool stringPool;
+        private String[] values = new String[0];
+
+        StringBatch(Column source, StringPool stringPool)
+        {
+            super(source);
+            this.stringPool = stringPool;
+        }
+
+        @Override
+        protected int capacity()
+        {
+            return values.length;
+        }
+
+        @Override
+        protected void grow(int capacity)
+        {
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        @Override
+        protected void loadValue(PageReader pageReader, int row)
+        {
+            final String s = pageReader.getString(source);
+            values[row] = stringPool == null ? s : stringPool.intern(s);
+        }
+
+        @Override
+        protected void writeValue(PageBuilder pageBuilder, int outputIndex, int row)
+        {
+            pageBuilder.setString(outputIndex, values[row]);
+        }
+
+        @Override
+        void clear(int rows)
+        {
+            Arrays.fill(values, 0, rows, null);
+        }
+    }
+
+    // Timestamps are kept as Instants, so a common column writes the same instance to every row of its record.
+    private static final class TimestampBatch extends ColumnBatch
+    {
+        private Instant[] values = new Instant[0];
+
+        TimestampBatch(Column source)
+        {
+            super(source);
+        }
+
+        @Override
+        protected int capacity()
+        {
+            return values.length;
+        }
+
+        @Override
+        protected void grow(int capacity)
+        {
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        @Override
+        protected void loadValue(PageReader pageReader, int row)
+        {
+            values[row] = PageCompat.getTimestamp(pageReader, source);
+        }
+
+        @Override
+        protected void writeValue(PageBuilder pageBuilder, int outputIndex, int row)
+        {
+            PageCompat.setTimestamp(pageBuilder, outputIndex, values[row]);
+        }
+
+        @Override
+        void clear(int rows)
+        {
+            Arrays.fill(values, 0, rows, null);
+        }
+    }
+
+    private static final class JsonBatch extends ColumnBatch
+    {
+        private Value[] values = new Value[0];
+
+        JsonBatch(Column source)
+        {
+            super(source);
+        }
+
+        @Override
+        protected int capacity()
+        {
+            return values.length;
+        }
+
+        @Override
+        protected void grow(int capacity)
+        {
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        @Override
+        protected void loadValue(PageReader pageReader, int row)
+        {
+            values[row] = pageReader.getJson(source);
+        }
+
+        @Override
+        protected void writeValue(PageBuilder pageBuilder, int outputIndex, int row)
+        {
+            pageBuilder.setJson(outputIndex, values[row]);
+        }
+
+        @Override
+        void clear(int rows)
+        {
+            Arrays.fill(values, 0, rows, null);
+        }
+    }
+}
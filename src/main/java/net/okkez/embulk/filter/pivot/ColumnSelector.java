@@ -0,0 +1,52 @@
+package net.okkez.embulk.filter.pivot;
+
+import org.embulk.config.ConfigException;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+// Matches column names against a list of exact names and /regex/ patterns.
+// Exact names are looked up in a hash set, and all patterns are compiled into a single alternation.
+final class ColumnSelector
+{
+    private final Set<String> names;
+    private final Pattern pattern;
+
+    private ColumnSelector(Set<String> names, Pattern pattern)
+    {
+        this.names = names;
+        this.pattern = pattern;
+    }
+
+    static ColumnSelector of(List<String> entries)
+    {
+        final Set<String> names = new HashSet<>();
+        final List<String> regexes = new ArrayList<>();
+        for (String entry : entries) {
+            if (entry.length() >= 2 && entry.startsWith("/") && entry.endsWith("/")) {
+                regexes.add("(?:" + entry.substring(1, entry.length() - 1) + ")");
+            }
+            else {
+                names.add(entry);
+            }
+        }
+        if (regexes.isEmpty()) {
+            return new ColumnSelector(names, null);
+        }
+        try {
+            return new ColumnSelector(names, Pattern.compile(String.join("|", regexes)));
+        }
+        catch (PatternSyntaxException e) {
+            throw new ConfigException("Invalid column name pattern: " + e.getMessage(), e);
+        }
+    }
+
+    boolean matches(String name)
+    {
+        return names.contains(name) || (pattern != null && pattern.matcher(name).find());
+    }
+}
@@ -2,92 +2,256 @@ package net.okkez.embulk.filter.pivot;
 
 import org.embulk.spi.Column;
 import org.embulk.spi.DataException;
-import org.embulk.spi.Exec;
 import org.embulk.spi.Page;
 import org.embulk.spi.PageBuilder;
 import org.embulk.spi.PageOutput;
 import org.embulk.spi.PageReader;
 import org.embulk.spi.Schema;
+import org.embulk.spi.type.Type;
 import org.embulk.spi.type.Types;
+import org.msgpack.value.Value;
+import org.msgpack.value.ValueFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
 
 public class FilteredPageOutput implements PageOutput
 {
     private static final Logger log = LoggerFactory.getLogger(FilteredPageOutput.class);
+    static final int STRING_POOL_SIZE = 1024;
     private final PageReader pageReader;
     private final PageBuilder pageBuilder;
+    private final ValueCopier[] commonCopiers;
+    private final ValueCopier[] valueCopiers;
+    private final CellPredicate[] skipPredicates;
+    private final int[][] nullValueIndexes;
+    private final String[] keyLabels;
+    private final long[] keyCodes;
+    private final int keyIndex;
+    private final PivotMetrics metrics;
+    private final OutputPaging paging;
+    private final ChangeSnapshot changes;
     private final List<Column> commonColumns;
-    private final List<Column> expandingColumns;
+    private final Supplier<String> entityJson = this::describeEntity;
+    private final CellHasher[] entityHashers;
+    private final CellHasher[] valueHashers;
+    private final long[] keyHashes;
+    private final int[] valueIndexes;
+    private final int changeIndex;
+    private long unchangedCells;
 
-    @SuppressWarnings({"deprecation", "unused"})
     public FilteredPageOutput(
             PivotFilterPlugin.PluginTask task,
             Schema inputSchema,
             Schema outputSchema,
-            PageOutput output,
-            List<Column> commonColumns,
-            List<Column> expandingColumns)
+            PageOutput output)
     {
-        // Keep compatibility with Embulk-0.9.x
-        this.pageReader = new PageReader(inputSchema);
-        this.pageBuilder = new PageBuilder(Exec.getBufferAllocator(), outputSchema, output);
+        this.pageReader = PageCompat.newPageReader(inputSchema);
+        this.metrics = new PivotMetrics(task.getTransactionId());
+        this.paging = new OutputPaging(task.getOutputPage(), metrics, outputSchema);
+        this.pageBuilder = PageCompat.newPageBuilder(paging, outputSchema, metrics.meter(output));
 
+        final PivotPlan plan = task.getPlan();
+        final List<Column> commonColumns = plan.getCommonColumns();
+        final List<Column> expandingColumns = plan.getExpandingColumns();
+        final StringPool stringPool = new StringPool(STRING_POOL_SIZE);
+        this.commonCopiers = new ValueCopier[commonColumns.size()];
+        for (int i = 0; i < commonCopiers.length; i++) {
+            commonCopiers[i] = ValueCopier.of(commonColumns.get(i), i, stringPool);
+        }
+        this.keyIndex = plan.getKeyIndex();
+        this.valueCopiers = new ValueCopier[expandingColumns.size()];
+        this.skipPredicates = new CellPredicate[expandingColumns.size()];
+        this.nullValueIndexes = new int[expandingColumns.size()][];
+        this.keyLabels = plan.getKeyLabels() == null ? null : plan.getKeyLabels().toArray(new String[0]);
+        this.keyCodes = plan.getKeyCodes() == null ? null : plan.getKeyCodes().stream().mapToLong(Long::longValue).toArray();
+        for (int i = 0; i < valueCopiers.length; i++) {
+            final Column source = expandingColumns.get(i);
+            final Column target = findValueColumn(task.getValueMode(), plan.getValueColumns(), source);
+            valueCopiers[i] = buildValueCopier(task, source, target);
+            nullValueIndexes[i] = plan.getValueColumns().stream()
+                    .mapToInt(Column::getIndex)
+                    .filter(index -> index != target.getIndex())
+                    .toArray();
+            skipPredicates[i] = Where.skipUnless(SkipValues.build(task.getSkipValues(), expandingColumns.get(i)),
+                    Where.build(task.getWhere().getValues(), expandingColumns.get(i)));
+        }
+
+        this.changes = task.getChanges().getSnapshotPath().map(ChangeSnapshot::forTask).orElse(null);
         this.commonColumns = commonColumns;
-        this.expandingColumns = expandingColumns;
+        this.entityHashers = commonColumns.stream().map(Fingerprints::hasher).toArray(CellHasher[]::new);
+        this.valueHashers = expandingColumns.stream().map(Fingerprints::hasher).toArray(CellHasher[]::new);
+        this.keyHashes = new long[expandingColumns.size()];
+        for (int i = 0; i < keyHashes.length; i++) {
+            keyHashes[i] = ChangeSnapshot.keyHash(plan, i);
+        }
+        this.valueIndexes = plan.getValueColumns().stream().mapToInt(Column::getIndex).toArray();
+        this.changeIndex = outputSchema.getColumnCount() - 1;
     }
 
     @Override
     public void add(Page page)
     {
+        final long start = System.nanoTime();
+        metrics.startPage(page);
         pageReader.setPage(page);
         while (pageReader.nextRecord()) {
             try {
-                for (Column c : expandingColumns) {
-                    int i = 0;
-                    for (Column common : commonColumns) {
-                        setValue(i, common);
-                        i++;
+                boolean commonLoaded = false;
+                boolean described = false;
+                final long entity = changes == null ? 0 : Fingerprints.combine(entityHashers, pageReader);
+                for (int i = 0; i < valueCopiers.length; i++) {
+                    final boolean skipped = skipPredicates[i] != null && skipPredicates[i].test(pageReader);
+                    String change = null;
+                    if (changes != null) {
+                        final long current = skipped ? 0 : valueHashers[i].hash(pageReader);
+                        final long previous = changes.exchange(entity, keyHashes[i], current);
+                        if (current != 0 && !described) {
+                            changes.describe(entity, entityJson);
+                            described = true;
+                        }
+                        if (previous == current) {
+                            if (skipped) {
+                                metrics.skipped++;
+                            }
+                            else {
+                                unchangedCells++;
+                            }
+                            continue;
+                        }
+                        change = previous == 0 ? "insert" : current == 0 ? "delete" : "update";
+                    }
+                    else if (skipped) {
+                        metrics.skipped++;
+                        continue;
+                    }
+                    if (!commonLoaded) {
+                        for (ValueCopier common : commonCopiers) {
+                            common.load(pageReader);
+                        }
+                        commonLoaded = true;
+                    }
+                    for (ValueCopier common : commonCopiers) {
+                        common.write(pageBuilder);
+                    }
+                    if (keyCodes != null) {
+                        pageBuilder.setLong(keyIndex, keyCodes[i]); // key
+                    }
+                    else {
+                        pageBuilder.setString(keyIndex, keyLabels[i]); // key
+                    }
+                    if (skipped) {
+                        // A deleted value is emitted as null
+                        for (int index : valueIndexes) {
+                            pageBuilder.setNull(index);
+                        }
+                    }
+                    else {
+                        valueCopiers[i].copy(pageReader, pageBuilder); // value
+                        for (int index : nullValueIndexes[i]) {
+                            pageBuilder.setNull(index);
+                        }
+                    }
+                    if (change != null) {
+                        pageBuilder.setString(changeIndex, change);
                     }
-                    pageBuilder.setString(i, c.getName()); // key
-                    i++;
-                    setValue(i, c); // value
                     pageBuilder.addRecord();
+                    paging.recordAdded(pageBuilder);
                 }
             }
             catch (DataException e) {
-                log.warn("{}", e.getMessage());
+                metrics.recordError(log, e);
             }
         }
+        metrics.addNanos += System.nanoTime() - start;
     }
 
-    @SuppressWarnings("deprecation")
-    private void setValue(int index, Column c)
+    // The common columns of the current record as a JSON object, written to changes.deletes_path when a cell disappears
+    private String describeEntity()
     {
-        if (Types.STRING.equals(c.getType())) {
-            pageBuilder.setString(index, pageReader.getString(c));
+        final Map<Value, Value> fields = new LinkedHashMap<>();
+        for (Column c : commonColumns) {
+            fields.put(ValueFactory.newString(c.getName()), toValue(c));
+        }
+        return ValueFactory.newMap(fields).toJson();
+    }
+
+    private Value toValue(Column column)
+    {
+        if (pageReader.isNull(column)) {
+            return ValueFactory.newNil();
+        }
+        final Type type = column.getType();
+        if (Types.BOOLEAN.equals(type)) {
+            return ValueFactory.newBoolean(pageReader.getBoolean(column));
+        }
+        if (Types.LONG.equals(type)) {
+            return ValueFactory.newInteger(pageReader.getLong(column));
+        }
+        if (Types.DOUBLE.equals(type)) {
+            return ValueFactory.newFloat(pageReader.getDouble(column));
         }
-        else if (Types.DOUBLE.equals(c.getType())) {
-            pageBuilder.setDouble(index, pageReader.getDouble(c));
+        if (Types.TIMESTAMP.equals(type)) {
+            return ValueFactory.newString(PageCompat.getTimestamp(pageReader, column).toString());
         }
-        else if (Types.LONG.equals(c.getType())) {
-            pageBuilder.setLong(index, pageReader.getLong(c));
+        if (Types.JSON.equals(type)) {
+            return pageReader.getJson(column);
         }
-        else if (Types.TIMESTAMP.equals(c.getType())) {
-            // Compatibility for Embulk-0.9.23
-            pageBuilder.setTimestamp(index, pageReader.getTimestamp(c));
+        return ValueFactory.newString(pageReader.getString(column));
+    }
+
+    static Column findValueColumn(PivotFilterPlugin.ValueMode valueMode, List<Column> valueColumns, Column source)
+    {
+        if (valueMode != PivotFilterPlugin.ValueMode.TYPED_COLUMNS) {
+            return valueColumns.get(0);
+        }
+        for (Column c : valueColumns) {
+            if (c.getType().equals(source.getType())) {
+                return c;
+            }
         }
-        else if (Types.BOOLEAN.equals(c.getType())) {
-            pageBuilder.setBoolean(index, pageReader.getBoolean(c));
+        throw new IllegalStateException("No value column for type " + source.getType());
+    }
+
+    private static ValueCopier buildValueCopier(PivotFilterPlugin.PluginTask task, Column source, Column target)
+    {
+        if (task.getValueMode() == PivotFilterPlugin.ValueMode.COERCE) {
+            return ValueCoercion.of(source, target, TimestampFormat.of(task.getValueConfig()));
         }
+        return ValueCopier.of(source, target.getIndex());
+    }
+
+    // Emits the rows built so far as a page without finishing the output.
+    void flush()
+    {
+        pageBuilder.flush();
+    }
+
+    long getSkippedCells()
+    {
+        return metrics.skipped;
+    }
+
+    PivotMetrics getMetrics()
+    {
+        return metrics;
     }
 
     @Override
     public void finish()
     {
         pageBuilder.finish();
+        if (metrics.skipped > 0) {
+            log.info("Skipped {} cells by skip_values or where", metrics.skipped);
+        }
+        if (changes != null) {
+            log.info("Skipped {} unchanged cells", unchangedCells);
+        }
+        metrics.finish(log);
     }
 
     @Override
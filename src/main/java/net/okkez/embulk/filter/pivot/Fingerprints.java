@@ -0,0 +1,98 @@
+package net.okkez.embulk.filter.pivot;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.ColumnVisitor;
+import org.embulk.spi.PageReader;
+
+import java.time.Instant;
+
+// 64-bit fingerprints of cells, entities and keys for the change snapshot. Values of different
+// types and null hash to different sequences, and 0 is never returned so it can mark an empty slot.
+final class Fingerprints
+{
+    private static final long NULL_HASH = 0x6a09e667f3bcc908L;
+
+    private Fingerprints()
+    {
+    }
+
+    static CellHasher hasher(Column column)
+    {
+        final CellHasher[] resolved = new CellHasher[1];
+        column.visit(new ColumnVisitor()
+        {
+            @Override
+            public void booleanColumn(Column column)
+            {
+                resolved[0] = reader -> mix(1, reader.getBoolean(column) ? 1 : 0);
+            }
+
+            @Override
+            public void longColumn(Column column)
+            {
+                resolved[0] = reader -> mix(2, reader.getLong(column));
+            }
+
+            @Override
+            public void doubleColumn(Column column)
+            {
+                resolved[0] = reader -> mix(3, Double.doubleToLongBits(reader.getDouble(column)));
+            }
+
+            @Override
+            public void stringColumn(Column column)
+            {
+                resolved[0] = reader -> mix(4, string(reader.getString(column)));
+            }
+
+            @Override
+            public void timestampColumn(Column column)
+            {
+                resolved[0] = reader -> {
+                    final Instant t = PageCompat.getTimestamp(reader, column);
+                    return mix(mix(5, t.getEpochSecond()), t.getNano());
+                };
+            }
+
+            @Override
+            public void jsonColumn(Column column)
+            {
+                resolved[0] = reader -> mix(6, string(reader.getJson(column).toJson()));
+            }
+        });
+        final CellHasher valueHasher = resolved[0];
+        return reader -> reader.isNull(column) ? NULL_HASH : valueHasher.hash(reader);
+    }
+
+    // Combines the hashes of the given cells in order
+    static long combine(CellHasher[] hashers, PageReader pageReader)
+    {
+        long h = 7;
+        for (CellHasher hasher : hashers) {
+            h = mix(h, hasher.hash(pageReader));
+        }
+        return h;
+    }
+
+    // FNV-1a over UTF-16 code units
+    static long string(String s)
+    {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h = (h ^ s.charAt(i)) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    // Mixes a value into a hash with the Murmur3 finalizer
+    static long mix(long h, long value)
+    {
+        long x = (h ^ value) * 0x9e3779b97f4a7c15L + value;
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        x *= 0xc4ceb9fe1a85ec53L;
+        x ^= x >>> 33;
+        return x == 0 ? 1 : x;
+    }
+}
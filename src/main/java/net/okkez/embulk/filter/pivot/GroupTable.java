@@ -0,0 +1,158 @@
+package net.okkez.embulk.filter.pivot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Open addressing hash table of groups keyed by the encoded bytes of their common values.
+// Each group keeps its key/value entries as an append-only byte array instead of boxed objects.
+final class GroupTable
+{
+    // Rough per-group overhead of the Group object, its arrays and its table slot on a 64-bit JVM
+    private static final int GROUP_OVERHEAD_BYTES = 80;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int INITIAL_ENTRIES_CAPACITY = 32;
+
+    static final class Group
+    {
+        final byte[] key;
+        final int hash;
+        byte[] entries;
+        int length;
+
+        private Group(byte[] key, int hash)
+        {
+            this.key = key;
+            this.hash = hash;
+            this.entries = new byte[INITIAL_ENTRIES_CAPACITY];
+        }
+    }
+
+    private Group[] table = new Group[INITIAL_CAPACITY];
+    private int size;
+    private long memoryBytes;
+
+    Group getOrCreate(byte[] key, int keyLength)
+    {
+        final int hash = hash(key, keyLength);
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        while (table[slot] != null) {
+            final Group g = table[slot];
+            if (g.hash == hash && equals(g.key, key, keyLength)) {
+                return g;
+            }
+            slot = (slot + 1) & mask;
+        }
+        final Group g = new Group(Arrays.copyOf(key, keyLength), hash);
+        table[slot] = g;
+        size++;
+        memoryBytes += GROUP_OVERHEAD_BYTES + keyLength + g.entries.length;
+        if (size * 4 >= table.length * 3) {
+            resize();
+        }
+        return g;
+    }
+
+    void append(Group g, byte[] bytes, int length)
+    {
+        if (g.length + length > g.entries.length) {
+            final int capacity = Math.max(g.entries.length * 2, g.length + length);
+            memoryBytes += capacity - g.entries.length;
+            g.entries = Arrays.copyOf(g.entries, capacity);
+        }
+        System.arraycopy(bytes, 0, g.entries, g.length, length);
+        g.length += length;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    long getMemoryBytes()
+    {
+        return memoryBytes + (long) table.length * 8;
+    }
+
+    List<Group> groups()
+    {
+        final List<Group> groups = new ArrayList<>(size);
+        for (Group g : table) {
+            if (g != null) {
+                groups.add(g);
+            }
+        }
+        return groups;
+    }
+
+    List<Group> sortedGroups()
+    {
+        final List<Group> groups = groups();
+        groups.sort((a, b) -> compare(a.key, a.key.length, b.key, b.key.length));
+        return groups;
+    }
+
+    void clear()
+    {
+        table = new Group[INITIAL_CAPACITY];
+        size = 0;
+        memoryBytes = 0;
+    }
+
+    static int compare(byte[] a, int aLength, byte[] b, int bLength)
+    {
+        final int n = Math.min(aLength, bLength);
+        for (int i = 0; i < n; i++) {
+            final int c = (a[i] & 0xff) - (b[i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return aLength - bLength;
+    }
+
+    private void resize()
+    {
+        final Group[] old = table;
+        table = new Group[old.length * 2];
+        final int mask = table.length - 1;
+        for (Group g : old) {
+            if (g != null) {
+                int slot = g.hash & mask;
+                while (table[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = g;
+            }
+        }
+    }
+
+    private static int hash(byte[] key, int length)
+    {
+        // FNV-1a with the Murmur3 finalizer. A base-31 polynomial collides heavily on keys that differ
+        // only in a few bytes, such as encoded sequential ids, and linear probing then degrades.
+        int h = 0x811c9dc5;
+        for (int i = 0; i < length; i++) {
+            h = (h ^ (key[i] & 0xff)) * 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean equals(byte[] a, byte[] b, int bLength)
+    {
+        if (a.length != bLength) {
+            return false;
+        }
+        for (int i = 0; i < bLength; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
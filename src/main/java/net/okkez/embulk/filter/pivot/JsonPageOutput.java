@@ -0,0 +1,143 @@
+package net.okkez.embulk.filter.pivot;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.DataException;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Types;
+import org.msgpack.value.ArrayValue;
+import org.msgpack.value.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+
+// Pivots the entries of a JSON object, or the elements of a JSON array, into key/value rows.
+// Nested objects and arrays are flattened down to json_depth levels with keys joined by '.',
+// and deeper values are written as they are.
+public class JsonPageOutput implements PageOutput
+{
+    private static final Logger log = LoggerFactory.getLogger(JsonPageOutput.class);
+    private final PageReader pageReader;
+    private final PageBuilder pageBuilder;
+    private final ValueCopier[] commonCopiers;
+    private final Column jsonColumn;
+    private final JsonPath root;
+    private final int depth;
+    private final int keyIndex;
+    private final int valueIndex;
+    private final boolean jsonValue;
+    private final StringPool keyPool = new StringPool(FilteredPageOutput.STRING_POOL_SIZE);
+    private final PivotMetrics metrics;
+    private final OutputPaging paging;
+
+    public JsonPageOutput(
+            PivotFilterPlugin.PluginTask task,
+            Schema inputSchema,
+            Schema outputSchema,
+            PageOutput output)
+    {
+        this.pageReader = PageCompat.newPageReader(inputSchema);
+        this.metrics = new PivotMetrics(task.getTransactionId());
+        this.paging = new OutputPaging(task.getOutputPage(), metrics, outputSchema);
+        this.pageBuilder = PageCompat.newPageBuilder(paging, outputSchema, metrics.meter(output));
+
+        final PivotPlan plan = task.getPlan();
+        this.commonCopiers = SpreadPageOutput.buildCommonCopiers(plan);
+        this.jsonColumn = plan.getExpandingColumns().get(0);
+        this.root = JsonPath.parse(task.getJsonRoot());
+        this.depth = task.getJsonDepth();
+        this.keyIndex = plan.getKeyIndex();
+        final Column valueColumn = plan.getValueColumns().get(0);
+        this.valueIndex = valueColumn.getIndex();
+        this.jsonValue = Types.JSON.equals(valueColumn.getType());
+    }
+
+    @Override
+    public void add(Page page)
+    {
+        final long start = System.nanoTime();
+        metrics.startPage(page);
+        pageReader.setPage(page);
+        while (pageReader.nextRecord()) {
+            try {
+                final Value value = pageReader.isNull(jsonColumn) ? null : root.resolve(pageReader.getJson(jsonColumn));
+                if (value == null || !(value.isMapValue() || value.isArrayValue())) {
+                    metrics.skipped++;
+                    continue;
+                }
+                for (ValueCopier common : commonCopiers) {
+                    common.load(pageReader);
+                }
+                expand(null, value, 1);
+            }
+            catch (DataException e) {
+                metrics.recordError(log, e);
+            }
+        }
+        metrics.addNanos += System.nanoTime() - start;
+    }
+
+    private void expand(String prefix, Value container, int level)
+    {
+        if (container.isMapValue()) {
+            for (Map.Entry<Value, Value> e : container.asMapValue().entrySet()) {
+                final Value k = e.getKey();
+                emit(prefix, k.isStringValue() ? k.asStringValue().asString() : k.toJson(), e.getValue(), level);
+            }
+        }
+        else {
+            final ArrayValue array = container.asArrayValue();
+            for (int i = 0; i < array.size(); i++) {
+                emit(prefix, Integer.toString(i), array.get(i), level);
+            }
+        }
+    }
+
+    private void emit(String prefix, String name, Value value, int level)
+    {
+        final String key = prefix == null ? keyPool.intern(name) : prefix + "." + name;
+        if (level < depth && (value.isMapValue() || value.isArrayValue())) {
+            expand(key, value, level + 1);
+            return;
+        }
+        for (ValueCopier common : commonCopiers) {
+            common.write(pageBuilder);
+        }
+        pageBuilder.setString(keyIndex, keyPool.intern(key));
+        if (value.isNilValue()) {
+            pageBuilder.setNull(valueIndex);
+        }
+        else if (jsonValue) {
+            pageBuilder.setJson(valueIndex, value);
+        }
+        else if (value.isStringValue()) {
+            pageBuilder.setString(valueIndex, value.asStringValue().asString());
+        }
+        else {
+            pageBuilder.setString(valueIndex, value.toJson());
+        }
+        pageBuilder.addRecord();
+        paging.recordAdded(pageBuilder);
+    }
+
+    @Override
+    public void finish()
+    {
+        pageBuilder.finish();
+        if (metrics.skipped > 0) {
+            log.info("Skipped {} records without a JSON object or array at {}", metrics.skipped, root);
+        }
+        metrics.finish(log);
+    }
+
+    @Override
+    public void close()
+    {
+        pageReader.close();
+        pageBuilder.close();
+    }
+}
@@ -0,0 +1,113 @@
+package net.okkez.embulk.filter.pivot;
+
+import org.embulk.config.ConfigException;
+import org.msgpack.value.ArrayValue;
+import org.msgpack.value.Value;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// A subset of JSONPath selecting one nested value: "$", "$.attrs", "$.items[0].tags" or "attrs.tags".
+// Segments are parsed once, and resolve() walks the msgpack value without converting it to a string.
+final class JsonPath
+{
+    private final String path;
+    private final Object[] segments; // String for a map key, Integer for an array index
+
+    private JsonPath(String path, Object[] segments)
+    {
+        this.path = path;
+        this.segments = segments;
+    }
+
+    static JsonPath parse(String path)
+    {
+        String rest = path.trim();
+        if (rest.startsWith("$")) {
+            rest = rest.substring(1);
+        }
+        final List<Object> segments = new ArrayList<>();
+        int i = 0;
+        while (i < rest.length()) {
+            final char c = rest.charAt(i);
+            if (c == '.') {
+                i++;
+            }
+            else if (c == '[') {
+                final int end = rest.indexOf(']', i);
+                if (end < 0) {
+                    throw new ConfigException(String.format("Invalid json_root '%s': missing ']'", path));
+                }
+                final String inner = rest.substring(i + 1, end).trim();
+                if (inner.length() >= 2 && (inner.charAt(0) == '\'' || inner.charAt(0) == '"') && inner.charAt(inner.length() - 1) == inner.charAt(0)) {
+                    segments.add(inner.substring(1, inner.length() - 1));
+                }
+                else {
+                    try {
+                        segments.add(Integer.parseInt(inner));
+                    }
+                    catch (NumberFormatException e) {
+                        throw new ConfigException(String.format("Invalid json_root '%s': '%s' is not an array index", path, inner), e);
+                    }
+                }
+                i = end + 1;
+            }
+            else {
+                int end = i;
+                while (end < rest.length() && rest.charAt(end) != '.' && rest.charAt(end) != '[') {
+                    end++;
+                }
+                segments.add(rest.substring(i, end));
+                i = end;
+            }
+        }
+        return new JsonPath(path, segments.toArray());
+    }
+
+    // Returns the selected value, or null if the path does not exist in the value.
+    Value resolve(Value value)
+    {
+        Value current = value;
+        for (Object segment : segments) {
+            if (segment instanceof Integer) {
+                final int index = (Integer) segment;
+                if (!current.isArrayValue()) {
+                    return null;
+                }
+                final ArrayValue array = current.asArrayValue();
+                if (index < 0 || index >= array.size()) {
+                    return null;
+                }
+                current = array.get(index);
+            }
+            else {
+                if (!current.isMapValue()) {
+                    return null;
+                }
+                current = lookup(current, (String) segment);
+                if (current == null) {
+                    return null;
+                }
+            }
+        }
+        return current;
+    }
+
+    private static Value lookup(Value map, String key)
+    {
+        for (Map.Entry<Value, Value> e : map.asMapValue().entrySet()) {
+            final Value k = e.getKey();
+            if (k.isStringValue() && k.asStringValue().asString().equals(key)) {
+                return e.getValue();
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString()
+    {
+        return path;
+    }
+}
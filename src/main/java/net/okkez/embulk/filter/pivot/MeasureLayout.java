@@ -0,0 +1,185 @@
+package net.okkez.embulk.filter.pivot;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.embulk.config.ConfigException;
+import org.embulk.spi.Column;
+import org.embulk.spi.type.Type;
+import org.embulk.spi.type.Types;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+// Output rows of a multi-measure unpivot, resolved from measure_pattern at transaction time.
+// Column names such as q1_sales are split into key parts (period=q1) and a measure (sales).
+// Each distinct set of key parts becomes one output row per record, with one value column per measure.
+public final class MeasureLayout
+{
+    static final String MEASURE_GROUP = "measure";
+    private static final Pattern GROUP_NAME = Pattern.compile("\\(\\?<([a-zA-Z][a-zA-Z0-9]*)>");
+
+    private final List<Column> measuredColumns;
+    private final List<Column> keyColumns;
+    private final List<Column> valueColumns;
+    private final List<List<String>> rowKeys;
+    private final int[][] slots;
+
+    @JsonCreator
+    public MeasureLayout(
+            @JsonProperty("measured_columns") List<Column> measuredColumns,
+            @JsonProperty("key_columns") List<Column> keyColumns,
+            @JsonProperty("value_columns") List<Column> valueColumns,
+            @JsonProperty("row_keys") List<List<String>> rowKeys,
+            @JsonProperty("slots") int[][] slots)
+    {
+        this.measuredColumns = Collections.unmodifiableList(new ArrayList<>(measuredColumns));
+        this.keyColumns = Collections.unmodifiableList(new ArrayList<>(keyColumns));
+        this.valueColumns = Collections.unmodifiableList(new ArrayList<>(valueColumns));
+        this.rowKeys = Collections.unmodifiableList(new ArrayList<>(rowKeys));
+        this.slots = slots;
+    }
+
+    static MeasureLayout build(String measurePattern, List<Column> commonColumns, List<Column> expandingColumns)
+    {
+        final int keyIndex = commonColumns.size();
+        final Pattern pattern;
+        try {
+            pattern = Pattern.compile(measurePattern);
+        }
+        catch (PatternSyntaxException e) {
+            throw new ConfigException("Invalid measure_pattern: " + e.getMessage(), e);
+        }
+        final List<String> keyGroups = new ArrayList<>();
+        boolean hasMeasure = false;
+        final Matcher names = GROUP_NAME.matcher(measurePattern);
+        while (names.find()) {
+            if (MEASURE_GROUP.equals(names.group(1))) {
+                hasMeasure = true;
+            }
+            else {
+                keyGroups.add(names.group(1));
+            }
+        }
+        if (!hasMeasure || keyGroups.isEmpty()) {
+            throw new ConfigException("measure_pattern must have a named group 'measure' and at least one other named group: " + measurePattern);
+        }
+
+        final List<Column> measuredColumns = new ArrayList<>();
+        final Map<List<String>, Integer> rows = new LinkedHashMap<>();
+        final Map<String, Type> measures = new LinkedHashMap<>();
+        final List<int[]> cells = new ArrayList<>(); // {row, measure, index in measuredColumns}
+        for (Column c : expandingColumns) {
+            final Matcher m = pattern.matcher(c.getName());
+            if (!m.matches()) {
+                continue;
+            }
+            final List<String> key = new ArrayList<>();
+            for (String group : keyGroups) {
+                final String part = m.group(group);
+                key.add(part == null ? "" : part);
+            }
+            final String measure = m.group(MEASURE_GROUP);
+            final Type type = measures.putIfAbsent(measure, c.getType());
+            if (type != null && !type.equals(c.getType())) {
+                throw new ConfigException(String.format("Columns of measure '%s' have different types: %s and %s", measure, type, c.getType()));
+            }
+            rows.putIfAbsent(key, rows.size());
+            cells.add(new int[] {rows.get(key), indexOf(measures, measure), measuredColumns.size()});
+            measuredColumns.add(c);
+        }
+        if (measuredColumns.isEmpty()) {
+            throw new ConfigException("No column matches measure_pattern: " + measurePattern);
+        }
+
+        final List<Column> keyColumns = new ArrayList<>();
+        for (String group : keyGroups) {
+            keyColumns.add(new Column(keyIndex + keyColumns.size(), group, Types.STRING));
+        }
+        final List<Column> valueColumns = new ArrayList<>();
+        for (Map.Entry<String, Type> e : measures.entrySet()) {
+            valueColumns.add(new Column(keyIndex + keyColumns.size() + valueColumns.size(), e.getKey(), e.getValue()));
+        }
+        final Set<String> outputNames = new HashSet<>();
+        for (Column c : commonColumns) {
+            outputNames.add(c.getName());
+        }
+        for (Column c : keyColumns) {
+            if (!outputNames.add(c.getName())) {
+                throw new ConfigException(String.format("Group '%s' of measure_pattern has the same name as a common column", c.getName()));
+            }
+        }
+        for (Column c : valueColumns) {
+            if (!outputNames.add(c.getName())) {
+                throw new ConfigException(String.format("Measure '%s' has the same name as a common column or a group of measure_pattern", c.getName()));
+            }
+        }
+
+        final int[][] slots = new int[rows.size()][measures.size()];
+        for (int[] slot : slots) {
+            Arrays.fill(slot, -1);
+        }
+        for (int[] cell : cells) {
+            if (slots[cell[0]][cell[1]] >= 0) {
+                throw new ConfigException(String.format("Columns '%s' and '%s' have the same key and measure",
+                        measuredColumns.get(slots[cell[0]][cell[1]]).getName(), measuredColumns.get(cell[2]).getName()));
+            }
+            slots[cell[0]][cell[1]] = cell[2];
+        }
+        return new MeasureLayout(measuredColumns, keyColumns, valueColumns, new ArrayList<>(rows.keySet()), slots);
+    }
+
+    private static int indexOf(Map<String, Type> measures, String measure)
+    {
+        int i = 0;
+        for (String name : measures.keySet()) {
+            if (name.equals(measure)) {
+                return i;
+            }
+            i++;
+        }
+        throw new IllegalStateException(measure);
+    }
+
+    // Input columns matching the pattern. Slots refer to the index in this list.
+    @JsonProperty("measured_columns")
+    public List<Column> getMeasuredColumns()
+    {
+        return measuredColumns;
+    }
+
+    // Output string columns, one per named group other than 'measure'
+    @JsonProperty("key_columns")
+    public List<Column> getKeyColumns()
+    {
+        return keyColumns;
+    }
+
+    // Output columns, one per measure
+    @JsonProperty("value_columns")
+    public List<Column> getValueColumns()
+    {
+        return valueColumns;
+    }
+
+    @JsonProperty("row_keys")
+    public List<List<String>> getRowKeys()
+    {
+        return rowKeys;
+    }
+
+    // slots[row][measure] is the index of the measured column, or -1 if the row has no such measure
+    @JsonProperty("slots")
+    public int[][] getSlots()
+    {
+        return slots;
+    }
+}
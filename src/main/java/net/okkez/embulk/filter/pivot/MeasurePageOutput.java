@@ -0,0 +1,162 @@
+package net.okkez.embulk.filter.pivot;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.DataException;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+// Pivots columns to rows with several value columns per row (multi-measure unpivot).
+// Each record yields one row per key of the MeasureLayout. The layout is resolved at transaction
+// time, so adding a record does no regular expression matching.
+public class MeasurePageOutput implements PageOutput
+{
+    private static final Logger log = LoggerFactory.getLogger(MeasurePageOutput.class);
+    private final PageReader pageReader;
+    private final PageBuilder pageBuilder;
+    private final ValueCopier[] commonCopiers;
+    private final ValueCopier[] cellCopiers;
+    private final CellPredicate[] skipPredicates;
+    private final boolean[] skippedCells;
+    private final String[][] rowKeys;
+    private final int[][] slots;
+    private final int keyIndex;
+    private final int[] valueIndexes;
+    private final PivotMetrics metrics;
+    private final OutputPaging paging;
+
+    public MeasurePageOutput(
+            PivotFilterPlugin.PluginTask task,
+            Schema inputSchema,
+            Schema outputSchema,
+            PageOutput output)
+    {
+        this.pageReader = PageCompat.newPageReader(inputSchema);
+        this.metrics = new PivotMetrics(task.getTransactionId());
+        this.paging = new OutputPaging(task.getOutputPage(), metrics, outputSchema);
+        this.pageBuilder = PageCompat.newPageBuilder(paging, outputSchema, metrics.meter(output));
+
+        final MeasureLayout layout = task.getMeasureLayout().get();
+        this.commonCopiers = SpreadPageOutput.buildCommonCopiers(task.getPlan());
+        this.keyIndex = task.getPlan().getKeyIndex();
+        this.slots = layout.getSlots();
+        this.rowKeys = new String[layout.getRowKeys().size()][];
+        for (int i = 0; i < rowKeys.length; i++) {
+            rowKeys[i] = layout.getRowKeys().get(i).toArray(new String[0]);
+        }
+        final List<Column> valueColumns = layout.getValueColumns();
+        this.valueIndexes = valueColumns.stream().mapToInt(Column::getIndex).toArray();
+        final List<Column> measuredColumns = layout.getMeasuredColumns();
+        this.cellCopiers = new ValueCopier[measuredColumns.size()];
+        this.skipPredicates = new CellPredicate[measuredColumns.size()];
+        this.skippedCells = new boolean[measuredColumns.size()];
+        for (int[] row : slots) {
+            for (int m = 0; m < row.length; m++) {
+                if (row[m] >= 0) {
+                    cellCopiers[row[m]] = ValueCopier.of(measuredColumns.get(row[m]), valueIndexes[m]);
+                    skipPredicates[row[m]] = Where.skipUnless(SkipValues.build(task.getSkipValues(), measuredColumns.get(row[m])),
+                            Where.build(task.getWhere().getValues(), measuredColumns.get(row[m])));
+                }
+            }
+        }
+    }
+
+    @Override
+    public void add(Page page)
+    {
+        final long start = System.nanoTime();
+        metrics.startPage(page);
+        pageReader.setPage(page);
+        while (pageReader.nextRecord()) {
+            try {
+                boolean commonLoaded = false;
+                testCells();
+                for (int r = 0; r < slots.length; r++) {
+                    if (!hasValue(slots[r])) {
+                        continue;
+                    }
+                    if (!commonLoaded) {
+                        for (ValueCopier common : commonCopiers) {
+                            common.load(pageReader);
+                        }
+                        commonLoaded = true;
+                    }
+                    for (ValueCopier common : commonCopiers) {
+                        common.write(pageBuilder);
+                    }
+                    final String[] keys = rowKeys[r];
+                    for (int k = 0; k < keys.length; k++) {
+                        pageBuilder.setString(keyIndex + k, keys[k]);
+                    }
+                    final int[] row = slots[r];
+                    for (int m = 0; m < row.length; m++) {
+                        final int cell = row[m];
+                        if (cell < 0 || skippedCells[cell]) {
+                            pageBuilder.setNull(valueIndexes[m]);
+                        }
+                        else {
+                            cellCopiers[cell].copy(pageReader, pageBuilder);
+                        }
+                    }
+                    pageBuilder.addRecord();
+                    paging.recordAdded(pageBuilder);
+                }
+            }
+            catch (DataException e) {
+                metrics.recordError(log, e);
+            }
+        }
+        metrics.addNanos += System.nanoTime() - start;
+    }
+
+    // Tests skip_values and where once per cell of the current record. Skipped cells are counted like
+    // in the other modes, whether or not their row is emitted with other values.
+    private void testCells()
+    {
+        for (int cell = 0; cell < skipPredicates.length; cell++) {
+            skippedCells[cell] = skipPredicates[cell] != null && skipPredicates[cell].test(pageReader);
+            if (skippedCells[cell]) {
+                metrics.skipped++;
+            }
+        }
+    }
+
+    // A row is emitted when at least one of its cells is not skipped by skip_values or where.
+    private boolean hasValue(int[] row)
+    {
+        for (int cell : row) {
+            if (cell >= 0 && !skippedCells[cell]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    PivotMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    @Override
+    public void finish()
+    {
+        pageBuilder.finish();
+        if (metrics.skipped > 0) {
+            log.info("Skipped {} cells by skip_values or where", metrics.skipped);
+        }
+        metrics.finish(log);
+    }
+
+    @Override
+    public void close()
+    {
+        pageReader.close();
+        pageBuilder.close();
+    }
+}
@@ -0,0 +1,104 @@
+package net.okkez.embulk.filter.pivot;
+
+import net.okkez.embulk.filter.pivot.PivotFilterPlugin.OutputPageTask;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.BufferAllocator;
+import org.embulk.spi.Exec;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+
+// Sizes the buffers of output pages and decides when to flush them. PageBuilder starts a new page when
+// a row does not fit in the buffer, but the allocator of Embulk rounds buffer sizes up to 32KB times a
+// power of two, so rows are also flushed when the next one would not fit in the page size chosen here.
+//
+// Without a fixed page_size, a page is sized to hold the rows expanded from one input page, from the
+// expansion factor and row width observed so far, between the default page size and max_pending_bytes.
+// Rows are flushed early when they reach max_rows, or when the rows and their strings are estimated to
+// exceed max_pending_bytes.
+final class OutputPaging implements BufferAllocator
+{
+    static final int MIN_PAGE_SIZE = 32 * 1024;
+    private static final int PAGE_HEADER_BYTES = 4;
+
+    private final BufferAllocator delegate;
+    private final PivotMetrics metrics;
+    private final int fixedPageSize;
+    private final int maxRows;
+    private final long maxPendingBytes;
+    private final int fixedRowBytes;
+    private long addedRows;
+    private long observedPages = -1;
+    private long rowBytes;
+    private long pageRows;
+
+    OutputPaging(OutputPageTask task, PivotMetrics metrics, Schema outputSchema)
+    {
+        this.delegate = Exec.getBufferAllocator();
+        this.metrics = metrics;
+        this.fixedPageSize = task.getPageSize().orElse(0);
+        this.maxRows = task.getMaxRows();
+        this.maxPendingBytes = task.getMaxPendingBytes();
+        // The row header with a null bitmap byte per 8 columns and the fixed-width slots of the columns.
+        // PageBuilder reserves the row header twice per row
+        this.fixedRowBytes = 2 * (4 + (outputSchema.getColumnCount() + 7) / 8) + outputSchema.getFixedStorageSize();
+    }
+
+    @Override
+    public Buffer allocate()
+    {
+        return delegate.allocate(pageSize());
+    }
+
+    @Override
+    public Buffer allocate(int minimumCapacity)
+    {
+        return delegate.allocate(Math.max(minimumCapacity, pageSize()));
+    }
+
+    // Called after each PageBuilder.addRecord()
+    void recordAdded(PageBuilder pageBuilder)
+    {
+        addedRows++;
+        final long pendingRows = addedRows - metrics.outputRows;
+        observe();
+        if ((maxRows > 0 && pendingRows >= maxRows) || pendingRows >= pageRows || pendingRows * rowBytes >= maxPendingBytes) {
+            pageBuilder.flush();
+        }
+    }
+
+    // Called before a page built elsewhere is handed to the output of the page builder, so that its rows
+    // are not taken for flushed pending rows
+    void pageForwarded(Page page)
+    {
+        addedRows += PageReader.getRecordCount(page);
+    }
+
+    int pageSize()
+    {
+        if (fixedPageSize > 0) {
+            return fixedPageSize;
+        }
+        if (metrics.outputRows == 0 || metrics.inputRecords == 0 || metrics.inputPages == 0) {
+            return MIN_PAGE_SIZE;
+        }
+        final double expansion = (double) metrics.outputRows / metrics.inputRecords;
+        final double recordsPerPage = (double) metrics.inputRecords / metrics.inputPages;
+        final long fixedBytesPerRow = Math.max(1, metrics.pageBytes / metrics.outputRows);
+        final double target = Math.min(expansion * recordsPerPage * fixedBytesPerRow, (double) maxPendingBytes);
+        return (int) Math.max(MIN_PAGE_SIZE, Math.min((long) target, Integer.MAX_VALUE));
+    }
+
+    // Updates the rows that fit in a page and the average size of an output row including its strings
+    // when a page has been flushed
+    private void observe()
+    {
+        if (observedPages != metrics.pages) {
+            observedPages = metrics.pages;
+            pageRows = Math.max(1, (pageSize() - PAGE_HEADER_BYTES) / fixedRowBytes);
+            rowBytes = metrics.outputRows == 0 ? fixedRowBytes
+                    : Math.max(1, (metrics.pageBytes + metrics.stringBytes) / metrics.outputRows);
+        }
+    }
+}
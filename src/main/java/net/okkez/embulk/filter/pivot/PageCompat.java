@@ -0,0 +1,77 @@
+package net.okkez.embulk.filter.pivot;
+
+import org.embulk.spi.BufferAllocator;
+import org.embulk.spi.Column;
+import org.embulk.spi.Exec;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+
+import java.time.Instant;
+
+// Uses the page APIs of Embulk 0.10 and later when the running Embulk has them, and falls back to
+// the deprecated ones of Embulk 0.9.x otherwise. The checks run once, and a method that is missing
+// at runtime is never called, so linking does not fail on older versions.
+final class PageCompat
+{
+    private static final boolean HAS_PAGE_FACTORIES = hasMethod(Exec.class, "getPageReader", Schema.class);
+    private static final boolean HAS_INSTANT_TIMESTAMPS = hasMethod(PageReader.class, "getTimestampInstant", Column.class)
+            && hasMethod(PageBuilder.class, "setTimestamp", int.class, Instant.class);
+
+    private PageCompat()
+    {
+    }
+
+    @SuppressWarnings("deprecation")
+    static PageReader newPageReader(Schema schema)
+    {
+        if (HAS_PAGE_FACTORIES) {
+            return Exec.getPageReader(schema);
+        }
+        // Keep compatibility with Embulk-0.9.x
+        return new PageReader(schema);
+    }
+
+    @SuppressWarnings("deprecation")
+    static PageBuilder newPageBuilder(BufferAllocator allocator, Schema schema, PageOutput output)
+    {
+        if (HAS_PAGE_FACTORIES) {
+            return Exec.getPageBuilder(allocator, schema, output);
+        }
+        // Keep compatibility with Embulk-0.9.x
+        return new PageBuilder(allocator, schema, output);
+    }
+
+    @SuppressWarnings("deprecation")
+    static Instant getTimestamp(PageReader pageReader, Column column)
+    {
+        if (HAS_INSTANT_TIMESTAMPS) {
+            return pageReader.getTimestampInstant(column);
+        }
+        // Compatibility for Embulk-0.9.23
+        return pageReader.getTimestamp(column).getInstant();
+    }
+
+    @SuppressWarnings("deprecation")
+    static void setTimestamp(PageBuilder pageBuilder, int index, Instant value)
+    {
+        if (HAS_INSTANT_TIMESTAMPS) {
+            pageBuilder.setTimestamp(index, value);
+            return;
+        }
+        // Compatibility for Embulk-0.9.23
+        pageBuilder.setTimestamp(index, org.embulk.spi.time.Timestamp.ofInstant(value));
+    }
+
+    private static boolean hasMethod(Class<?> type, String name, Class<?>... parameterTypes)
+    {
+        try {
+            type.getMethod(name, parameterTypes);
+            return true;
+        }
+        catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package net.okkez.embulk.filter.pivot;
+
+import org.embulk.spi.Page;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Pivots columns to rows (wide to long) on worker threads. Each input page is decoded, expanded
+// and encoded into output pages by one worker, and the output pages are forwarded in input order
+// on the task thread. At most queue_depth input pages are in flight.
+//
+// A worker flushes its rows at the end of each input page, so the last output page of a job is
+// usually partial. Its rows are copied into a page builder on the task thread, which is flushed
+// with the sizing of output_page, or before the next full page of a job is forwarded as it is.
+public class PipelinedPageOutput implements PageOutput
+{
+    private static final Logger log = LoggerFactory.getLogger(PipelinedPageOutput.class);
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private final PageOutput output;
+    private final int queueDepth;
+    private final List<Worker> workers = new ArrayList<>();
+    private final BlockingQueue<Worker> idleWorkers;
+    private final ArrayDeque<Job> pending = new ArrayDeque<>();
+    private final ExecutorService executor;
+    private final PivotMetrics metrics;
+    private final OutputPaging paging;
+    private final PageReader pageReader;
+    private final PageBuilder pageBuilder;
+    private final ValueCopier[] copiers;
+
+    public PipelinedPageOutput(
+            PivotFilterPlugin.PluginTask task,
+            Schema inputSchema,
+            Schema outputSchema,
+            PageOutput output)
+    {
+        this.metrics = new PivotMetrics(task.getTransactionId());
+        this.output = metrics.meter(output);
+        this.paging = new OutputPaging(task.getOutputPage(), metrics, outputSchema);
+        this.pageReader = PageCompat.newPageReader(outputSchema);
+        this.pageBuilder = PageCompat.newPageBuilder(paging, outputSchema, this.output);
+        this.copiers = new ValueCopier[outputSchema.getColumnCount()];
+        for (int i = 0; i < copiers.length; i++) {
+            copiers[i] = ValueCopier.of(outputSchema.getColumn(i), i);
+        }
+        final PivotFilterPlugin.PipelineTask pipeline = task.getPipeline();
+        this.queueDepth = pipeline.getQueueDepth();
+        this.idleWorkers = new ArrayBlockingQueue<>(pipeline.getWorkers());
+        for (int i = 0; i < pipeline.getWorkers(); i++) {
+            final Worker worker = new Worker(task, inputSchema, outputSchema);
+            workers.add(worker);
+            idleWorkers.add(worker);
+        }
+        this.executor = Executors.newFixedThreadPool(pipeline.getWorkers(), runnable -> {
+            final Thread thread = new Thread(runnable, "pivot-worker-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void add(Page page)
+    {
+        final long start = System.nanoTime();
+        metrics.startPage(page);
+        while (pending.size() >= queueDepth || (!pending.isEmpty() && pending.peek().future.isDone())) {
+            forward(pending.poll().future);
+        }
+        final Job job = new Job(page);
+        job.future = executor.submit(job);
+        pending.add(job);
+        metrics.addNanos += System.nanoTime() - start;
+    }
+
+    private void forward(Future<List<Page>> future)
+    {
+        final List<Page> pages;
+        try {
+            pages = future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+        for (int i = 0; i < pages.size(); i++) {
+            if (i < pages.size() - 1) {
+                // A page that the worker flushed because it was full
+                pageBuilder.flush();
+                paging.pageForwarded(pages.get(i));
+                output.add(pages.get(i));
+            }
+            else {
+                coalesce(pages.get(i));
+            }
+        }
+    }
+
+    private void coalesce(Page page)
+    {
+        pageReader.setPage(page);
+        while (pageReader.nextRecord()) {
+            for (ValueCopier copier : copiers) {
+                copier.copy(pageReader, pageBuilder);
+            }
+            pageBuilder.addRecord();
+            paging.recordAdded(pageBuilder);
+        }
+    }
+
+    @Override
+    public void finish()
+    {
+        final long start = System.nanoTime();
+        while (!pending.isEmpty()) {
+            forward(pending.poll().future);
+        }
+        pageBuilder.finish();
+        metrics.addNanos += System.nanoTime() - start;
+        for (Worker worker : workers) {
+            metrics.skipped += worker.filter.getMetrics().skipped;
+            metrics.failed += worker.filter.getMetrics().failed;
+        }
+        if (metrics.skipped > 0) {
+            log.info("Skipped {} cells by skip_values or where", metrics.skipped);
+        }
+        metrics.finish(log);
+    }
+
+    @Override
+    public void close()
+    {
+        // Without finish(), pages of pending jobs are released here: input pages that no worker has
+        // taken, output pages of completed jobs, and output pages left in workers by failed jobs.
+        for (Job job : pending) {
+            if (job.claim()) {
+                job.page.release();
+            }
+        }
+        executor.shutdownNow();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.warn("Pivot workers did not terminate");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Job job : pending) {
+            if (job.future.isDone() && !job.future.isCancelled()) {
+                try {
+                    releaseAll(job.future.get());
+                }
+                catch (InterruptedException | ExecutionException e) {
+                    // the job failed and left its pages in the worker
+                }
+            }
+        }
+        pending.clear();
+        for (Worker worker : workers) {
+            releaseAll(worker.pages);
+            worker.filter.close();
+        }
+        pageReader.close();
+        pageBuilder.close();
+    }
+
+    private static void releaseAll(List<Page> pages)
+    {
+        for (Page page : pages) {
+            page.release();
+        }
+        pages.clear();
+    }
+
+    // One input page. Either a worker or close() claims it, so that it is released exactly once.
+    private final class Job implements Callable<List<Page>>
+    {
+        private final Page page;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private Future<List<Page>> future;
+
+        Job(Page page)
+        {
+            this.page = page;
+        }
+
+        boolean claim()
+        {
+            return claimed.compareAndSet(false, true);
+        }
+
+        @Override
+        public List<Page> call() throws InterruptedException
+        {
+            final Worker worker = idleWorkers.take();
+            try {
+                if (!claim()) {
+                    return Collections.emptyList();
+                }
+                return worker.process(page);
+            }
+            finally {
+                idleWorkers.add(worker);
+            }
+        }
+    }
+
+    // A FilteredPageOutput writing into a page list. Used by one thread at a time.
+    private static final class Worker
+    {
+        private final List<Page> pages = new ArrayList<>();
+        private final FilteredPageOutput filter;
+
+        Worker(PivotFilterPlugin.PluginTask task, Schema inputSchema, Schema outputSchema)
+        {
+            this.filter = new FilteredPageOutput(task, inputSchema, outputSchema, new PageOutput()
+            {
+                @Override
+                public void add(Page page)
+                {
+                    pages.add(page);
+                }
+
+                @Override
+                public void finish()
+                {
+                }
+
+                @Override
+                public void close()
+                {
+                }
+            });
+        }
+
+        List<Page> process(Page page)
+        {
+            filter.add(page);
+            filter.flush();
+            final List<Page> result = new ArrayList<>(pages);
+            pages.clear();
+            return result;
+        }
+    }
+}
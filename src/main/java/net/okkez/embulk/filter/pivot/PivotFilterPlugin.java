@@ -1,11 +1,15 @@
 package net.okkez.embulk.filter.pivot;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
+import org.embulk.config.ConfigException;
 import org.embulk.config.ConfigSource;
 import org.embulk.config.TaskSource;
 import org.embulk.spi.Column;
 import org.embulk.spi.FilterPlugin;
 import org.embulk.spi.PageOutput;
 import org.embulk.spi.Schema;
+import org.embulk.spi.type.Type;
+import org.embulk.spi.type.Types;
 import org.embulk.util.config.Config;
 import org.embulk.util.config.ConfigDefault;
 import org.embulk.util.config.ConfigMapper;
@@ -16,8 +20,17 @@ import org.embulk.util.config.units.ColumnConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.IntPredicate;
 
 public class PivotFilterPlugin
         implements FilterPlugin
@@ -25,17 +38,292 @@ public class PivotFilterPlugin
     public interface PluginTask
             extends Task
     {
+        @Config("mode")
+        @ConfigDefault("\"wide_to_long\"")
+        Mode getMode();
+
         @Config("common_columns")
         @ConfigDefault("[]")
         List<String> getCommonColumns();
 
+        @Config("expanding_columns")
+        @ConfigDefault("null")
+        Optional<List<String>> getExpandingColumns();
+
+        @Config("exclude_columns")
+        @ConfigDefault("[]")
+        List<String> getExcludeColumns();
+
         @Config("key_config")
         @ConfigDefault("{\"name\": \"key\", \"type\": \"string\"}")
         ColumnConfig getKeyConfig();
 
+        @Config("key_mapping")
+        @ConfigDefault("{}")
+        Map<String, String> getKeyMapping();
+
         @Config("value_config")
         @ConfigDefault("{\"name\": \"value\", \"type\": \"string\"}")
         ColumnConfig getValueConfig();
+
+        @Config("value_mode")
+        @ConfigDefault("\"copy\"")
+        ValueMode getValueMode();
+
+        @Config("skip_values")
+        @ConfigDefault("{}")
+        SkipValuesTask getSkipValues();
+
+        @Config("keys")
+        @ConfigDefault("[]")
+        List<String> getKeys();
+
+        @Config("columns")
+        @ConfigDefault("[]")
+        List<ColumnConfig> getColumns();
+
+        @Config("sorted")
+        @ConfigDefault("true")
+        boolean getSorted();
+
+        @Config("memory_budget")
+        @ConfigDefault("268435456")
+        long getMemoryBudget();
+
+        @Config("temp_dir")
+        @ConfigDefault("null")
+        Optional<String> getTempDir();
+
+        @Config("measure_pattern")
+        @ConfigDefault("null")
+        Optional<String> getMeasurePattern();
+
+        @Config("json_column")
+        @ConfigDefault("null")
+        Optional<String> getJsonColumn();
+
+        @Config("json_root")
+        @ConfigDefault("\"$\"")
+        String getJsonRoot();
+
+        @Config("json_depth")
+        @ConfigDefault("1")
+        int getJsonDepth();
+
+        @Config("pipeline")
+        @ConfigDefault("{}")
+        PipelineTask getPipeline();
+
+        @Config("batch")
+        @ConfigDefault("false")
+        boolean getBatch();
+
+        @Config("where")
+        @ConfigDefault("{}")
+        WhereTask getWhere();
+
+        @Config("group_keys")
+        @ConfigDefault("{}")
+        GroupKeysTask getGroupKeys();
+
+        @Config("changes")
+        @ConfigDefault("{}")
+        ChangesTask getChanges();
+
+        @Config("output_page")
+        @ConfigDefault("{}")
+        OutputPageTask getOutputPage();
+
+        PivotPlan getPlan();
+        void setPlan(PivotPlan plan);
+
+        String getTransactionId();
+        void setTransactionId(String transactionId);
+
+        Optional<MeasureLayout> getMeasureLayout();
+        void setMeasureLayout(Optional<MeasureLayout> measureLayout);
+    }
+
+    public enum Mode
+    {
+        WIDE_TO_LONG,
+        LONG_TO_WIDE,
+        JSON_TO_LONG;
+
+        @JsonCreator
+        public static Mode fromString(String value)
+        {
+            for (Mode mode : values()) {
+                if (mode.name().equalsIgnoreCase(value)) {
+                    return mode;
+                }
+            }
+            throw new ConfigException(String.format("Unknown mode '%s'. Supported modes are wide_to_long, long_to_wide and json_to_long", value));
+        }
+    }
+
+    public enum ValueMode
+    {
+        COPY,
+        TYPED_COLUMNS,
+        COERCE;
+
+        @JsonCreator
+        public static ValueMode fromString(String value)
+        {
+            for (ValueMode mode : values()) {
+                if (mode.name().equalsIgnoreCase(value)) {
+                    return mode;
+                }
+            }
+            throw new ConfigException(String.format("Unknown value_mode '%s'. Supported modes are copy, typed_columns and coerce", value));
+        }
+    }
+
+    public interface SkipValuesTask
+            extends Task
+    {
+        @Config("null")
+        @ConfigDefault("false")
+        boolean getNull();
+
+        @Config("empty_string")
+        @ConfigDefault("false")
+        boolean getEmptyString();
+
+        @Config("zero")
+        @ConfigDefault("false")
+        boolean getZero();
+
+        @Config("values")
+        @ConfigDefault("[]")
+        List<String> getValues();
+    }
+
+    public interface PipelineTask
+            extends Task
+    {
+        @Config("workers")
+        @ConfigDefault("0")
+        int getWorkers();
+
+        @Config("queue_depth")
+        @ConfigDefault("4")
+        int getQueueDepth();
+    }
+
+    public interface OutputPageTask
+            extends Task
+    {
+        @Config("page_size")
+        @ConfigDefault("null")
+        Optional<Integer> getPageSize();
+
+        @Config("max_rows")
+        @ConfigDefault("0")
+        int getMaxRows();
+
+        @Config("max_pending_bytes")
+        @ConfigDefault("8388608")
+        long getMaxPendingBytes();
+    }
+
+    public interface ChangesTask
+            extends Task
+    {
+        @Config("snapshot_path")
+        @ConfigDefault("null")
+        Optional<String> getSnapshotPath();
+
+        @Config("capacity")
+        @ConfigDefault("16777216")
+        long getCapacity();
+
+        @Config("change_column")
+        @ConfigDefault("\"change\"")
+        String getChangeColumn();
+
+        @Config("deletes_path")
+        @ConfigDefault("null")
+        Optional<String> getDeletesPath();
+    }
+
+    public interface GroupKeysTask
+            extends Task
+    {
+        @Config("window_records")
+        @ConfigDefault("0")
+        int getWindowRecords();
+
+        @Config("window_bytes")
+        @ConfigDefault("0")
+        long getWindowBytes();
+    }
+
+    public interface WhereTask
+            extends Task
+    {
+        @Config("keys")
+        @ConfigDefault("null")
+        Optional<List<String>> getKeys();
+
+        @Config("values")
+        @ConfigDefault("[]")
+        List<ConditionTask> getValues();
+    }
+
+    public interface ConditionTask
+            extends Task
+    {
+        @Config("operator")
+        Operator getOperator();
+
+        @Config("value")
+        @ConfigDefault("null")
+        Optional<String> getValue();
+    }
+
+    public enum Operator
+    {
+        EQ("==", cmp -> cmp == 0),
+        NE("!=", cmp -> cmp != 0),
+        GT(">", cmp -> cmp > 0),
+        GE(">=", cmp -> cmp >= 0),
+        LT("<", cmp -> cmp < 0),
+        LE("<=", cmp -> cmp <= 0),
+        IS_NULL("is_null", null),
+        IS_NOT_NULL("is_not_null", null);
+
+        private final String symbol;
+        private final IntPredicate resultTest;
+
+        Operator(String symbol, IntPredicate resultTest)
+        {
+            this.symbol = symbol;
+            this.resultTest = resultTest;
+        }
+
+        String getSymbol()
+        {
+            return symbol;
+        }
+
+        // Tells whether a result of compare(value, literal) satisfies the operator
+        IntPredicate getResultTest()
+        {
+            return resultTest;
+        }
+
+        @JsonCreator
+        public static Operator fromString(String value)
+        {
+            for (Operator operator : values()) {
+                if (operator.symbol.equals(value) || operator.name().equalsIgnoreCase(value)) {
+                    return operator;
+                }
+            }
+            throw new ConfigException(String.format("Unknown operator '%s'. Supported operators are ==, !=, >, >=, <, <=, is_null and is_not_null", value));
+        }
     }
 
     private static final ConfigMapperFactory CONFIG_MAPPER_FACTORY = ConfigMapperFactory.builder().addDefaultModules().build();
@@ -44,19 +332,53 @@ public class PivotFilterPlugin
 
     private static final Logger log = LoggerFactory.getLogger(PivotFilterPlugin.class);
 
-    private List<Column> commonColumns;
-    private List<Column> expandingColumns;
+    private static final List<Type> TYPED_VALUE_COLUMN_TYPES = Arrays.asList(
+            Types.STRING, Types.LONG, Types.DOUBLE, Types.BOOLEAN, Types.TIMESTAMP, Types.JSON);
 
     @Override
     public void transaction(ConfigSource config, Schema inputSchema,
                             FilterPlugin.Control control)
     {
         PluginTask task = CONFIG_MAPPER.map(config, PluginTask.class);
+        validatePipeline(task);
+        validateBatch(task);
+        validateChanges(task);
+        validateOutputPage(task);
+        validateSkipValues(task);
+        task.setMeasureLayout(Optional.empty());
 
-        buildColumns(task, inputSchema);
+        if (task.getMode() == Mode.LONG_TO_WIDE) {
+            task.setPlan(buildSpreadPlan(task, inputSchema));
+        }
+        else if (task.getMode() == Mode.JSON_TO_LONG) {
+            task.setPlan(buildJsonPlan(task, inputSchema));
+        }
+        else {
+            task.setPlan(buildPlan(task, inputSchema));
+        }
+        validateWhere(task);
         Schema outputSchema = buildOutputSchema(task);
 
-        control.run(task.toTaskSource(), outputSchema);
+        final String transactionId = PivotMetrics.beginTransaction();
+        task.setTransactionId(transactionId);
+        final Optional<String> snapshotPath = task.getChanges().getSnapshotPath();
+        final ChangeSnapshot snapshot = snapshotPath.isPresent() ? ChangeSnapshot.begin(task.getChanges(), task.getKeyConfig().getName(), task.getPlan()) : null;
+        try {
+            control.run(task.toTaskSource(), outputSchema);
+            if (snapshot != null) {
+                // FilterPlugin cannot return a config diff, so the snapshot path stays in the config as is
+                snapshot.commit(task.getChanges());
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Cannot save change snapshot " + snapshotPath.get(), e);
+        }
+        finally {
+            if (snapshot != null) {
+                snapshot.close();
+            }
+            PivotMetrics.endTransaction(transactionId, log);
+        }
     }
 
     @Override
@@ -65,35 +387,343 @@ public class PivotFilterPlugin
     {
         final PluginTask task = TASK_MAPPER.map(taskSource, PluginTask.class);
 
-        return new FilteredPageOutput(task, inputSchema, outputSchema, output, commonColumns, expandingColumns);
+        if (task.getMode() == Mode.LONG_TO_WIDE) {
+            if (!task.getSorted()) {
+                return new AggregatingPageOutput(task, inputSchema, outputSchema, output);
+            }
+            return new SpreadPageOutput(task, inputSchema, outputSchema, output);
+        }
+        if (task.getMode() == Mode.JSON_TO_LONG) {
+            return new JsonPageOutput(task, inputSchema, outputSchema, output);
+        }
+        if (task.getMeasureLayout().isPresent()) {
+            return new MeasurePageOutput(task, inputSchema, outputSchema, output);
+        }
+        if (usesBatch(task)) {
+            return new BatchPageOutput(task, inputSchema, outputSchema, output);
+        }
+        if (task.getPipeline().getWorkers() > 0) {
+            return new PipelinedPageOutput(task, inputSchema, outputSchema, output);
+        }
+        return new FilteredPageOutput(task, inputSchema, outputSchema, output);
+    }
+
+    private static void validatePipeline(PluginTask task)
+    {
+        final PipelineTask pipeline = task.getPipeline();
+        if (pipeline.getWorkers() < 0) {
+            throw new ConfigException("pipeline.workers must not be negative");
+        }
+        if (pipeline.getQueueDepth() <= 0) {
+            throw new ConfigException("pipeline.queue_depth must be positive");
+        }
+        if (pipeline.getWorkers() > 0 && (task.getMode() != Mode.WIDE_TO_LONG || task.getMeasurePattern().isPresent())) {
+            throw new ConfigException("pipeline is supported only with mode: wide_to_long without measure_pattern");
+        }
+    }
+
+    private static void validateBatch(PluginTask task)
+    {
+        final GroupKeysTask groupKeys = task.getGroupKeys();
+        if (groupKeys.getWindowRecords() < 0 || groupKeys.getWindowBytes() < 0) {
+            throw new ConfigException("group_keys.window_records and group_keys.window_bytes must not be negative");
+        }
+        if (!usesBatch(task)) {
+            return;
+        }
+        if (task.getMode() != Mode.WIDE_TO_LONG || task.getMeasurePattern().isPresent() || task.getValueMode() == ValueMode.COERCE) {
+            throw new ConfigException("batch and group_keys are supported only with mode: wide_to_long, without measure_pattern, and with value_mode copy or typed_columns");
+        }
+        if (task.getPipeline().getWorkers() > 0) {
+            throw new ConfigException("batch and group_keys cannot be used with pipeline");
+        }
+    }
+
+    // group_keys buffers records in the columnar buffers of batch mode
+    private static boolean usesBatch(PluginTask task)
+    {
+        return task.getBatch() || task.getGroupKeys().getWindowRecords() > 0 || task.getGroupKeys().getWindowBytes() > 0;
+    }
+
+    private static void validateOutputPage(PluginTask task)
+    {
+        final OutputPageTask outputPage = task.getOutputPage();
+        if (outputPage.getPageSize().isPresent() && outputPage.getPageSize().get() < OutputPaging.MIN_PAGE_SIZE) {
+            throw new ConfigException("output_page.page_size must be " + OutputPaging.MIN_PAGE_SIZE + " or more");
+        }
+        if (outputPage.getMaxRows() < 0) {
+            throw new ConfigException("output_page.max_rows must not be negative");
+        }
+        if (outputPage.getMaxPendingBytes() <= 0) {
+            throw new ConfigException("output_page.max_pending_bytes must be positive");
+        }
+    }
+
+    private static void validateChanges(PluginTask task)
+    {
+        if (!task.getChanges().getSnapshotPath().isPresent()) {
+            return;
+        }
+        if (task.getMode() != Mode.WIDE_TO_LONG || task.getMeasurePattern().isPresent() || usesBatch(task)) {
+            throw new ConfigException("changes is supported only with mode: wide_to_long, without measure_pattern, batch and group_keys");
+        }
+        // A value that fails to convert would be recorded in the snapshot without being emitted
+        if (task.getValueMode() == ValueMode.COERCE) {
+            throw new ConfigException("changes cannot be used with value_mode: coerce");
+        }
+        // The change of an entity seen on two workers would depend on their timing
+        if (task.getPipeline().getWorkers() > 0) {
+            throw new ConfigException("changes cannot be used with pipeline");
+        }
+    }
+
+    private static void validateSkipValues(PluginTask task)
+    {
+        final SkipValuesTask skipValues = task.getSkipValues();
+        final boolean skips = skipValues.getNull() || skipValues.getEmptyString() || skipValues.getZero() || !skipValues.getValues().isEmpty();
+        if (task.getMode() != Mode.WIDE_TO_LONG && skips) {
+            throw new ConfigException("skip_values is supported only with mode: wide_to_long");
+        }
+    }
+
+    private static void validateWhere(PluginTask task)
+    {
+        final WhereTask where = task.getWhere();
+        if (task.getMode() != Mode.WIDE_TO_LONG && (where.getKeys().isPresent() || !where.getValues().isEmpty())) {
+            throw new ConfigException("where is supported only with mode: wide_to_long");
+        }
+        if (where.getKeys().isPresent() && task.getMeasurePattern().isPresent()) {
+            throw new ConfigException("where.keys cannot be used with measure_pattern");
+        }
+        for (Column c : task.getPlan().getExpandingColumns()) {
+            Where.build(where.getValues(), c);
+        }
     }
 
-    private void buildColumns(PluginTask task, Schema inputSchema)
+    private PivotPlan buildPlan(PluginTask task, Schema inputSchema)
     {
-        this.commonColumns = new ArrayList<>();
-        this.expandingColumns = new ArrayList<>();
+        final Set<String> commonColumnNames = new HashSet<>(task.getCommonColumns());
+        final ColumnSelector excluded = ColumnSelector.of(task.getExcludeColumns());
+        final Optional<ColumnSelector> expanding = task.getExpandingColumns().map(ColumnSelector::of);
+        final List<Column> commonColumns = new ArrayList<>();
+        final List<Column> expandingColumns = new ArrayList<>();
 
         for (Column c : inputSchema.getColumns()) {
-            if (task.getCommonColumns().contains(c.getName())) {
-                this.commonColumns.add(c);
+            if (commonColumnNames.contains(c.getName())) {
+                commonColumns.add(c);
+            }
+            else if (excluded.matches(c.getName())) {
+                continue;
             }
-            else {
-                this.expandingColumns.add(c);
+            else if (!expanding.isPresent() || expanding.get().matches(c.getName())) {
+                expandingColumns.add(c);
             }
         }
+        if (task.getMeasurePattern().isPresent()) {
+            log.debug("Resolved {} common columns and {} expanding columns out of {} input columns",
+                    commonColumns.size(), expandingColumns.size(), inputSchema.getColumnCount());
+            if (task.getValueMode() != ValueMode.COPY) {
+                throw new ConfigException("value_mode cannot be used with measure_pattern, which has one value column per measure");
+            }
+            // key_config differing from its default has been set
+            if (!task.getKeyMapping().isEmpty() || !"key".equals(task.getKeyConfig().getName()) || !Types.STRING.equals(task.getKeyConfig().getType())) {
+                throw new ConfigException("key_config and key_mapping cannot be used with measure_pattern, whose key columns are its named groups");
+            }
+            final MeasureLayout layout = MeasureLayout.build(task.getMeasurePattern().get(), commonColumns, expandingColumns);
+            task.setMeasureLayout(Optional.of(layout));
+            return new PivotPlan(commonColumns, layout.getMeasuredColumns(), layout.getValueColumns(), Collections.emptyList(), null);
+        }
+        final boolean longKey = Types.LONG.equals(task.getKeyConfig().getType());
+        final List<Long> keyCodes = longKey ? buildKeyCodes(task, expandingColumns) : null;
+        final List<String> keyLabels = longKey ? null : buildKeyLabels(task, expandingColumns);
+        if (task.getWhere().getKeys().isPresent()) {
+            selectKeys(ColumnSelector.of(task.getWhere().getKeys().get()), expandingColumns, longKey ? keyCodes : keyLabels);
+        }
+        log.debug("Resolved {} common columns and {} expanding columns out of {} input columns",
+                commonColumns.size(), expandingColumns.size(), inputSchema.getColumnCount());
+        final List<Column> valueColumns = buildValueColumns(task, commonColumns.size() + 1, expandingColumns);
+        return new PivotPlan(commonColumns, expandingColumns, valueColumns, keyLabels, keyCodes);
+    }
+
+    // Drops expanding columns whose key is not selected by where.keys, so their cells are never read
+    private static void selectKeys(ColumnSelector selector, List<Column> expandingColumns, List<?> keys)
+    {
+        for (int i = keys.size() - 1; i >= 0; i--) {
+            if (!selector.matches(String.valueOf(keys.get(i)))) {
+                expandingColumns.remove(i);
+                keys.remove(i);
+            }
+        }
+    }
+
+    // Keys of a string key column: the column name, or its label in key_mapping
+    private static List<String> buildKeyLabels(PluginTask task, List<Column> expandingColumns)
+    {
+        final Type keyType = task.getKeyConfig().getType();
+        if (!Types.STRING.equals(keyType)) {
+            throw new ConfigException(String.format("key_config.type must be string or long, but was %s", keyType));
+        }
+        final Map<String, String> mapping = task.getKeyMapping();
+        final List<String> labels = new ArrayList<>();
+        for (Column c : expandingColumns) {
+            labels.add(mapping.getOrDefault(c.getName(), c.getName()));
+        }
+        return labels;
+    }
+
+    // Keys of a long key column: the index of the column in the input schema, or its code in key_mapping
+    private static List<Long> buildKeyCodes(PluginTask task, List<Column> expandingColumns)
+    {
+        final Map<String, String> mapping = task.getKeyMapping();
+        final List<Long> codes = new ArrayList<>();
+        for (Column c : expandingColumns) {
+            final String code = mapping.get(c.getName());
+            if (code == null) {
+                codes.add((long) c.getIndex());
+                continue;
+            }
+            try {
+                codes.add(Long.parseLong(code.trim()));
+            }
+            catch (NumberFormatException e) {
+                throw new ConfigException(String.format("key_mapping of column '%s' must be a long, but was '%s'", c.getName(), code), e);
+            }
+        }
+        return codes;
+    }
+
+    private PivotPlan buildSpreadPlan(PluginTask task, Schema inputSchema)
+    {
+        final Column keyColumn = lookupColumn(inputSchema, task.getKeyConfig().getName());
+        final Column valueColumn = lookupColumn(inputSchema, task.getValueConfig().getName());
+        if (!Types.STRING.equals(keyColumn.getType()) && !Types.LONG.equals(keyColumn.getType())) {
+            throw new ConfigException(String.format("Key column '%s' must be string or long", keyColumn.getName()));
+        }
+
+        final List<Column> commonColumns = new ArrayList<>();
+        for (String name : task.getCommonColumns()) {
+            commonColumns.add(lookupColumn(inputSchema, name));
+        }
+
+        final List<Column> declaredColumns = new ArrayList<>();
+        for (ColumnConfig c : task.getColumns()) {
+            declaredColumns.add(c.toColumn(commonColumns.size() + declaredColumns.size()));
+        }
+        for (String key : task.getKeys()) {
+            declaredColumns.add(new Column(commonColumns.size() + declaredColumns.size(), key, valueColumn.getType()));
+        }
+        if (declaredColumns.isEmpty()) {
+            throw new ConfigException("Either 'keys' or 'columns' is required with mode: long_to_wide");
+        }
+        if (declaredColumns.size() > Short.MAX_VALUE) {
+            throw new ConfigException("Too many keys for mode: long_to_wide: " + declaredColumns.size());
+        }
+        if (task.getMemoryBudget() <= 0) {
+            throw new ConfigException("memory_budget must be positive");
+        }
+        final Set<String> names = new HashSet<>();
+        for (int i = 0; i < declaredColumns.size(); i++) {
+            final Column c = declaredColumns.get(i);
+            if (!names.add(c.getName())) {
+                throw new ConfigException(String.format("Duplicated key '%s'", c.getName()));
+            }
+            if (!c.getType().equals(valueColumn.getType())) {
+                ValueCoercion.validate(valueColumn.getType(), c.getType());
+                SpreadPageOutput.slotTimestampFormat(task, i);
+            }
+        }
+        return new PivotPlan(commonColumns, new ArrayList<>(), declaredColumns, keyColumn, valueColumn);
+    }
+
+    private PivotPlan buildJsonPlan(PluginTask task, Schema inputSchema)
+    {
+        final Column jsonColumn = lookupColumn(inputSchema, task.getJsonColumn().orElseThrow(
+                () -> new ConfigException("json_column is required with mode: json_to_long")));
+        if (!Types.JSON.equals(jsonColumn.getType())) {
+            throw new ConfigException(String.format("json_column '%s' must be a json column", jsonColumn.getName()));
+        }
+        if (!Types.STRING.equals(task.getKeyConfig().getType())) {
+            throw new ConfigException("key_config.type must be string with mode: json_to_long");
+        }
+        if (!task.getKeyMapping().isEmpty()) {
+            throw new ConfigException("key_mapping cannot be used with mode: json_to_long, whose keys come from the JSON value");
+        }
+        final Type valueType = task.getValueConfig().getType();
+        if (!Types.JSON.equals(valueType) && !Types.STRING.equals(valueType)) {
+            throw new ConfigException("value_config.type must be json or string with mode: json_to_long");
+        }
+        if (task.getJsonDepth() < 1) {
+            throw new ConfigException("json_depth must be 1 or more");
+        }
+        JsonPath.parse(task.getJsonRoot());
+
+        final List<Column> commonColumns = new ArrayList<>();
+        for (String name : task.getCommonColumns()) {
+            commonColumns.add(lookupColumn(inputSchema, name));
+        }
+        final Column valueColumn = new Column(commonColumns.size() + 1, task.getValueConfig().getName(), valueType);
+        return new PivotPlan(commonColumns, Collections.singletonList(jsonColumn), Collections.singletonList(valueColumn), Collections.emptyList(), null);
+    }
+
+    private static Column lookupColumn(Schema schema, String name)
+    {
+        for (Column c : schema.getColumns()) {
+            if (c.getName().equals(name)) {
+                return c;
+            }
+        }
+        throw new ConfigException(String.format("Column '%s' is not found", name));
+    }
+
+    private List<Column> buildValueColumns(PluginTask task, int index, List<Column> expandingColumns)
+    {
+        final ColumnConfig valueConfig = task.getValueConfig();
+        final List<Column> valueColumns = new ArrayList<>();
+        switch (task.getValueMode()) {
+            case TYPED_COLUMNS:
+                final Set<Type> types = new HashSet<>();
+                for (Column c : expandingColumns) {
+                    types.add(c.getType());
+                }
+                for (Type type : TYPED_VALUE_COLUMN_TYPES) {
+                    if (types.contains(type)) {
+                        valueColumns.add(new Column(index + valueColumns.size(), valueConfig.getName() + "_" + type.getName(), type));
+                    }
+                }
+                break;
+            case COERCE:
+                TimestampFormat.of(valueConfig);
+                for (Column c : expandingColumns) {
+                    ValueCoercion.validate(c.getType(), valueConfig.getType());
+                }
+                valueColumns.add(new Column(index, valueConfig.getName(), valueConfig.getType()));
+                break;
+            default:
+                valueColumns.add(new Column(index, valueConfig.getName(), valueConfig.getType()));
+                break;
+        }
+        return valueColumns;
     }
 
     private Schema buildOutputSchema(PluginTask task)
     {
         final List<Column> outputColumns = new ArrayList<>();
         int i = 0;
-        for (Column c : commonColumns) {
+        for (Column c : task.getPlan().getCommonColumns()) {
             outputColumns.add(new Column(i, c.getName(), c.getType()));
             i++;
         }
 
-        outputColumns.add(new Column(i, task.getKeyConfig().getName(), task.getKeyConfig().getType()));
-        outputColumns.add(new Column(i + 1, task.getValueConfig().getName(), task.getValueConfig().getType()));
+        if (task.getMeasureLayout().isPresent()) {
+            outputColumns.addAll(task.getMeasureLayout().get().getKeyColumns());
+        }
+        else if (task.getMode() != Mode.LONG_TO_WIDE) {
+            outputColumns.add(new Column(i, task.getKeyConfig().getName(), task.getKeyConfig().getType()));
+        }
+        outputColumns.addAll(task.getPlan().getValueColumns());
+        if (task.getChanges().getSnapshotPath().isPresent()) {
+            outputColumns.add(new Column(outputColumns.size(), task.getChanges().getChangeColumn(), Types.STRING));
+        }
 
         if (log.isDebugEnabled()) {
             for (Column c : outputColumns) {
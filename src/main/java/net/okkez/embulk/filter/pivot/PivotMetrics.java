@@ -0,0 +1,171 @@
+package net.okkez.embulk.filter.pivot;
+
+import org.embulk.spi.DataException;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.PageReader;
+import org.slf4j.Logger;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Counters and timings of one task. They are logged at finish() and added to the summary of the
+// transaction when the task runs in the same JVM as the transaction.
+final class PivotMetrics
+{
+    private static final Map<String, Summary> summaries = new ConcurrentHashMap<>();
+    private static final int ERROR_LOG_BURST = 10;
+    private static final long ERROR_LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final String transactionId;
+    long inputRecords;
+    long outputRows;
+    long skipped;
+    long failed;
+    long stringBytes;
+    long pages;
+    long inputPages;
+    long pageBytes;
+    long addNanos;
+    long flushNanos;
+    private long suppressedErrors;
+    private long lastErrorLogNanos;
+
+    PivotMetrics(String transactionId)
+    {
+        this.transactionId = transactionId;
+    }
+
+    static String beginTransaction()
+    {
+        final String id = UUID.randomUUID().toString();
+        summaries.put(id, new Summary());
+        return id;
+    }
+
+    static void endTransaction(String id, Logger logger)
+    {
+        final Summary summary = summaries.remove(id);
+        if (summary != null && summary.tasks > 0) {
+            summary.log(logger);
+        }
+    }
+
+    void startPage(Page page)
+    {
+        inputRecords += PageReader.getRecordCount(page);
+        inputPages++;
+    }
+
+    // Logs the first errors of a task, then at most one line per interval with the number of suppressed errors.
+    void recordError(Logger logger, DataException e)
+    {
+        failed++;
+        final long now = System.nanoTime();
+        if (failed <= ERROR_LOG_BURST || now - lastErrorLogNanos >= ERROR_LOG_INTERVAL_NANOS) {
+            if (suppressedErrors > 0) {
+                logger.warn("{} (suppressed {} similar errors)", e.getMessage(), suppressedErrors);
+                suppressedErrors = 0;
+            }
+            else {
+                logger.warn("{}", e.getMessage());
+            }
+            lastErrorLogNanos = now;
+        }
+        else {
+            suppressedErrors++;
+        }
+    }
+
+    // Counts rows, string bytes, pages and the time spent handing pages to the next plugin. String bytes are
+    // estimated from the lengths of the strings, which are exact for ASCII, to keep the cost per page low.
+    PageOutput meter(PageOutput output)
+    {
+        return new PageOutput()
+        {
+            @Override
+            public void add(Page page)
+            {
+                outputRows += PageReader.getRecordCount(page);
+                for (String s : page.getStringReferences()) {
+                    stringBytes += s.length();
+                }
+                pages++;
+                pageBytes += page.buffer().limit();
+                final long start = System.nanoTime();
+                output.add(page);
+                flushNanos += System.nanoTime() - start;
+            }
+
+            @Override
+            public void finish()
+            {
+                output.finish();
+            }
+
+            @Override
+            public void close()
+            {
+                output.close();
+            }
+        };
+    }
+
+    void finish(Logger logger)
+    {
+        if (suppressedErrors > 0) {
+            logger.warn("Suppressed {} more errors", suppressedErrors);
+            suppressedErrors = 0;
+        }
+        logger.info("Pivot task: input_records={} output_rows={} skipped={} failed={} string_bytes={} pages={} add_ms={} flush_ms={}",
+                inputRecords, outputRows, skipped, failed, stringBytes, pages,
+                TimeUnit.NANOSECONDS.toMillis(addNanos), TimeUnit.NANOSECONDS.toMillis(flushNanos));
+        final Summary summary = transactionId == null ? null : summaries.get(transactionId);
+        if (summary != null) {
+            summary.add(this);
+        }
+    }
+
+    private static final class Summary
+    {
+        private int tasks;
+        private long inputRecords;
+        private long outputRows;
+        private long skipped;
+        private long failed;
+        private long stringBytes;
+        private long pages;
+        private long addNanos;
+        private long flushNanos;
+        private long minTaskRows = Long.MAX_VALUE;
+        private long maxTaskRows;
+        private long maxTaskAddNanos;
+
+        synchronized void add(PivotMetrics m)
+        {
+            tasks++;
+            inputRecords += m.inputRecords;
+            outputRows += m.outputRows;
+            skipped += m.skipped;
+            failed += m.failed;
+            stringBytes += m.stringBytes;
+            pages += m.pages;
+            addNanos += m.addNanos;
+            flushNanos += m.flushNanos;
+            minTaskRows = Math.min(minTaskRows, m.outputRows);
+            maxTaskRows = Math.max(maxTaskRows, m.outputRows);
+            maxTaskAddNanos = Math.max(maxTaskAddNanos, m.addNanos);
+        }
+
+        synchronized void log(Logger logger)
+        {
+            final double expansion = inputRecords == 0 ? 0.0 : (double) outputRows / inputRecords;
+            logger.info("Pivot summary: tasks={} input_records={} output_rows={} expansion={} skipped={} failed={} string_bytes={} pages={} add_ms={} flush_ms={} task_rows_min={} task_rows_max={} task_add_ms_max={}",
+                    tasks, inputRecords, outputRows, String.format("%.2f", expansion), skipped, failed, stringBytes, pages,
+                    TimeUnit.NANOSECONDS.toMillis(addNanos), TimeUnit.NANOSECONDS.toMillis(flushNanos),
+                    minTaskRows, maxTaskRows, TimeUnit.NANOSECONDS.toMillis(maxTaskAddNanos));
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package net.okkez.embulk.filter.pivot;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.embulk.spi.Column;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Resolved columns of the input schema, stored in the task source so that open() does not depend on plugin instance state.
+public final class PivotPlan
+{
+    private final List<Column> commonColumns;
+    private final List<Column> expandingColumns;
+    private final List<Column> valueColumns;
+    private final Column spreadKeyColumn;
+    private final Column spreadValueColumn;
+    private final List<String> keyLabels;
+    private final List<Long> keyCodes;
+
+    public PivotPlan(List<Column> commonColumns, List<Column> expandingColumns, List<Column> valueColumns,
+                     List<String> keyLabels, List<Long> keyCodes)
+    {
+        this(commonColumns, expandingColumns, valueColumns, null, null, keyLabels, keyCodes);
+    }
+
+    public PivotPlan(List<Column> commonColumns, List<Column> expandingColumns, List<Column> valueColumns,
+                     Column spreadKeyColumn, Column spreadValueColumn)
+    {
+        this(commonColumns, expandingColumns, valueColumns, spreadKeyColumn, spreadValueColumn, null, null);
+    }
+
+    @JsonCreator
+    public PivotPlan(
+            @JsonProperty("common_columns") List<Column> commonColumns,
+            @JsonProperty("expanding_columns") List<Column> expandingColumns,
+            @JsonProperty("value_columns") List<Column> valueColumns,
+            @JsonProperty("spread_key_column") Column spreadKeyColumn,
+            @JsonProperty("spread_value_column") Column spreadValueColumn,
+            @JsonProperty("key_labels") List<String> keyLabels,
+            @JsonProperty("key_codes") List<Long> keyCodes)
+    {
+        this.commonColumns = Collections.unmodifiableList(new ArrayList<>(commonColumns));
+        this.expandingColumns = Collections.unmodifiableList(new ArrayList<>(expandingColumns));
+        this.valueColumns = Collections.unmodifiableList(new ArrayList<>(valueColumns));
+        this.spreadKeyColumn = spreadKeyColumn;
+        this.spreadValueColumn = spreadValueColumn;
+        this.keyLabels = keyLabels == null ? null : Collections.unmodifiableList(new ArrayList<>(keyLabels));
+        this.keyCodes = keyCodes == null ? null : Collections.unmodifiableList(new ArrayList<>(keyCodes));
+    }
+
+    @JsonProperty("common_columns")
+    public List<Column> getCommonColumns()
+    {
+        return commonColumns;
+    }
+
+    @JsonProperty("expanding_columns")
+    public List<Column> getExpandingColumns()
+    {
+        return expandingColumns;
+    }
+
+    // Output columns holding values: one column, one column per type with value_mode: typed_columns,
+    // or one column per key with mode: long_to_wide
+    @JsonProperty("value_columns")
+    public List<Column> getValueColumns()
+    {
+        return valueColumns;
+    }
+
+    // Input columns read by mode: long_to_wide
+    @JsonProperty("spread_key_column")
+    public Column getSpreadKeyColumn()
+    {
+        return spreadKeyColumn;
+    }
+
+    @JsonProperty("spread_value_column")
+    public Column getSpreadValueColumn()
+    {
+        return spreadValueColumn;
+    }
+
+    // Key written for each expanding column when the key column is a string, or null
+    @JsonProperty("key_labels")
+    public List<String> getKeyLabels()
+    {
+        return keyLabels;
+    }
+
+    // Key written for each expanding column when the key column is a long, or null
+    @JsonProperty("key_codes")
+    public List<Long> getKeyCodes()
+    {
+        return keyCodes;
+    }
+
+    @JsonIgnore
+    public int getKeyIndex()
+    {
+        return commonColumns.size();
+    }
+}
@@ -0,0 +1,148 @@
+package net.okkez.embulk.filter.pivot;
+
+import net.okkez.embulk.filter.pivot.PivotFilterPlugin.SkipValuesTask;
+import org.embulk.spi.Column;
+import org.embulk.spi.ColumnVisitor;
+import org.embulk.spi.PageReader;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.ToLongFunction;
+
+final class SkipValues
+{
+    private SkipValues()
+    {
+    }
+
+    // Returns null when no value of the column can be skipped, so the caller can avoid the check entirely.
+    static CellPredicate build(SkipValuesTask task, Column column)
+    {
+        final CellPredicate[] resolved = new CellPredicate[1];
+        column.visit(new ColumnVisitor()
+        {
+            @Override
+            public void booleanColumn(Column column)
+            {
+                final boolean skipTrue = task.getValues().contains("true");
+                final boolean skipFalse = task.getValues().contains("false");
+                if (skipTrue || skipFalse) {
+                    resolved[0] = reader -> reader.getBoolean(column) ? skipTrue : skipFalse;
+                }
+            }
+
+            @Override
+            public void longColumn(Column column)
+            {
+                final Set<Long> literals = new HashSet<>();
+                for (String s : task.getValues()) {
+                    try {
+                        literals.add(Long.parseLong(s));
+                    }
+                    catch (NumberFormatException e) {
+                        // not applicable to long columns
+                    }
+                }
+                if (task.getZero()) {
+                    literals.add(0L);
+                }
+                resolved[0] = anyOf(literals, reader -> reader.getLong(column));
+            }
+
+            @Override
+            public void doubleColumn(Column column)
+            {
+                // Compared by bits like Double.equals(), so that NaN can be skipped
+                final Set<Long> literals = new HashSet<>();
+                for (String s : task.getValues()) {
+                    try {
+                        literals.add(Double.doubleToLongBits(Double.parseDouble(s)));
+                    }
+                    catch (NumberFormatException e) {
+                        // not applicable to double columns
+                    }
+                }
+                final CellPredicate matchesLiteral = anyOf(literals, reader -> Double.doubleToLongBits(reader.getDouble(column)));
+                if (task.getZero()) {
+                    if (matchesLiteral == null) {
+                        resolved[0] = reader -> reader.getDouble(column) == 0.0;
+                    }
+                    else {
+                        resolved[0] = reader -> reader.getDouble(column) == 0.0 || matchesLiteral.test(reader);
+                    }
+                }
+                else {
+                    resolved[0] = matchesLiteral;
+                }
+            }
+
+            @Override
+            public void stringColumn(Column column)
+            {
+                final Set<String> literals = new HashSet<>(task.getValues());
+                if (task.getEmptyString()) {
+                    literals.add("");
+                }
+                if (!literals.isEmpty()) {
+                    resolved[0] = reader -> literals.contains(reader.getString(column));
+                }
+            }
+
+            @Override
+            public void timestampColumn(Column column)
+            {
+            }
+
+            @Override
+            public void jsonColumn(Column column)
+            {
+            }
+        });
+
+        final CellPredicate valuePredicate = resolved[0];
+        if (task.getNull()) {
+            if (valuePredicate == null) {
+                return reader -> reader.isNull(column);
+            }
+            return reader -> reader.isNull(column) || valuePredicate.test(reader);
+        }
+        if (valuePredicate == null) {
+            return null;
+        }
+        return reader -> !reader.isNull(column) && valuePredicate.test(reader);
+    }
+
+    // Matches a value against a few literals directly, or a sorted array of them, without boxing the value
+    private static CellPredicate anyOf(Set<Long> literals, ToLongFunction<PageReader> value)
+    {
+        final long[] sorted = literals.stream().mapToLong(Long::longValue).sorted().toArray();
+        switch (sorted.length) {
+            case 0:
+                return null;
+            case 1: {
+                final long a = sorted[0];
+                return reader -> value.applyAsLong(reader) == a;
+            }
+            case 2: {
+                final long a = sorted[0];
+                final long b = sorted[1];
+                return reader -> {
+                    final long v = value.applyAsLong(reader);
+                    return v == a || v == b;
+                };
+            }
+            case 3: {
+                final long a = sorted[0];
+                final long b = sorted[1];
+                final long c = sorted[2];
+                return reader -> {
+                    final long v = value.applyAsLong(reader);
+                    return v == a || v == b || v == c;
+                };
+            }
+            default:
+                return reader -> Arrays.binarySearch(sorted, value.applyAsLong(reader)) >= 0;
+        }
+    }
+}
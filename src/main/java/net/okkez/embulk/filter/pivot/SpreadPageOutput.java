@@ -0,0 +1,172 @@
+package net.okkez.embulk.filter.pivot;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.DataException;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+// Pivots rows to columns (long to wide). Input must be sorted by the common columns:
+// consecutive rows with equal common values are merged into one record, which is emitted
+// as soon as the common values change. Only the current group is kept in memory.
+public class SpreadPageOutput implements PageOutput
+{
+    private static final Logger log = LoggerFactory.getLogger(SpreadPageOutput.class);
+    private final PageReader pageReader;
+    private final PageBuilder pageBuilder;
+    private final ValueCopier[] commonCopiers;
+    private final ValueCopier[] slotCopiers;
+    private final boolean[] filled;
+    private final SpreadSlots slots;
+    private final PivotMetrics metrics;
+    private final OutputPaging paging;
+    private boolean inGroup;
+
+    public SpreadPageOutput(
+            PivotFilterPlugin.PluginTask task,
+            Schema inputSchema,
+            Schema outputSchema,
+            PageOutput output)
+    {
+        this.pageReader = PageCompat.newPageReader(inputSchema);
+        this.metrics = new PivotMetrics(task.getTransactionId());
+        this.paging = new OutputPaging(task.getOutputPage(), metrics, outputSchema);
+        this.pageBuilder = PageCompat.newPageBuilder(paging, outputSchema, metrics.meter(output));
+
+        final PivotPlan plan = task.getPlan();
+        this.commonCopiers = buildCommonCopiers(plan);
+        this.slotCopiers = buildSlotCopiers(task);
+        this.filled = new boolean[slotCopiers.length];
+        this.slots = SpreadSlots.of(plan);
+    }
+
+    static ValueCopier[] buildCommonCopiers(PivotPlan plan)
+    {
+        final List<Column> commonColumns = plan.getCommonColumns();
+        final StringPool stringPool = new StringPool(FilteredPageOutput.STRING_POOL_SIZE);
+        final ValueCopier[] commonCopiers = new ValueCopier[commonColumns.size()];
+        for (int i = 0; i < commonCopiers.length; i++) {
+            commonCopiers[i] = ValueCopier.of(commonColumns.get(i), i, stringPool);
+        }
+        return commonCopiers;
+    }
+
+    // One copier per declared key. Values are converted when the declared type differs from the value column.
+    static ValueCopier[] buildSlotCopiers(PivotFilterPlugin.PluginTask task)
+    {
+        final Column valueColumn = task.getPlan().getSpreadValueColumn();
+        final List<Column> valueColumns = task.getPlan().getValueColumns();
+        final ValueCopier[] slotCopiers = new ValueCopier[valueColumns.size()];
+        for (int i = 0; i < slotCopiers.length; i++) {
+            final Column target = valueColumns.get(i);
+            if (target.getType().equals(valueColumn.getType())) {
+                slotCopiers[i] = ValueCopier.of(valueColumn, target.getIndex());
+            }
+            else {
+                slotCopiers[i] = ValueCoercion.of(valueColumn, target, slotTimestampFormat(task, i));
+            }
+        }
+        return slotCopiers;
+    }
+
+    // Slots of columns come first, followed by slots of keys which use the format of value_config
+    static TimestampFormat slotTimestampFormat(PivotFilterPlugin.PluginTask task, int slot)
+    {
+        if (slot < task.getColumns().size()) {
+            return TimestampFormat.of(task.getColumns().get(slot), task.getValueConfig());
+        }
+        return TimestampFormat.of(task.getValueConfig());
+    }
+
+    @Override
+    public void add(Page page)
+    {
+        final long start = System.nanoTime();
+        metrics.startPage(page);
+        pageReader.setPage(page);
+        while (pageReader.nextRecord()) {
+            try {
+                if (inGroup && !isSameGroup()) {
+                    flushGroup();
+                }
+                if (!inGroup) {
+                    for (ValueCopier common : commonCopiers) {
+                        common.load(pageReader);
+                    }
+                    inGroup = true;
+                }
+                final int slot = slots.lookup(pageReader);
+                if (slot == SpreadSlots.NONE) {
+                    metrics.skipped++;
+                    continue;
+                }
+                slotCopiers[slot].load(pageReader);
+                filled[slot] = true;
+            }
+            catch (DataException e) {
+                metrics.recordError(log, e);
+            }
+        }
+        metrics.addNanos += System.nanoTime() - start;
+    }
+
+    private boolean isSameGroup()
+    {
+        for (ValueCopier common : commonCopiers) {
+            if (!common.isSameAs(pageReader)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void flushGroup()
+    {
+        for (ValueCopier common : commonCopiers) {
+            common.write(pageBuilder);
+        }
+        for (int i = 0; i < slotCopiers.length; i++) {
+            if (filled[i]) {
+                slotCopiers[i].write(pageBuilder);
+                filled[i] = false;
+            }
+            else {
+                pageBuilder.setNull(slotCopiers[i].outputIndex);
+            }
+        }
+        pageBuilder.addRecord();
+        paging.recordAdded(pageBuilder);
+        inGroup = false;
+    }
+
+    long getUnknownKeys()
+    {
+        return metrics.skipped;
+    }
+
+    @Override
+    public void finish()
+    {
+        if (inGroup) {
+            flushGroup();
+        }
+        pageBuilder.finish();
+        if (metrics.skipped > 0) {
+            log.info("Ignored {} rows whose key is null or not declared", metrics.skipped);
+        }
+        metrics.finish(log);
+    }
+
+    @Override
+    public void close()
+    {
+        pageReader.close();
+        pageBuilder.close();
+    }
+}
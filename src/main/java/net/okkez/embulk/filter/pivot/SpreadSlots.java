@@ -0,0 +1,85 @@
+package net.okkez.embulk.filter.pivot;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.type.Types;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Maps the key of a long to wide row to the slot of its output column. Long keys are looked up
+// by binary search over the declared names that are decimal longs, so no String is built per row.
+final class SpreadSlots
+{
+    static final int NONE = -1;
+
+    private final Column keyColumn;
+    private final Map<String, Integer> stringSlots;
+    private final long[] longKeys;
+    private final int[] longSlots;
+
+    private SpreadSlots(Column keyColumn, Map<String, Integer> stringSlots, long[] longKeys, int[] longSlots)
+    {
+        this.keyColumn = keyColumn;
+        this.stringSlots = stringSlots;
+        this.longKeys = longKeys;
+        this.longSlots = longSlots;
+    }
+
+    static SpreadSlots of(PivotPlan plan)
+    {
+        final Column keyColumn = plan.getSpreadKeyColumn();
+        final List<Column> valueColumns = plan.getValueColumns();
+        final Map<String, Integer> stringSlots = new HashMap<>();
+        for (int i = 0; i < valueColumns.size(); i++) {
+            stringSlots.put(valueColumns.get(i).getName(), i);
+        }
+        if (Types.STRING.equals(keyColumn.getType())) {
+            return new SpreadSlots(keyColumn, stringSlots, null, null);
+        }
+
+        // Only names written as Long.toString() writes them can match a long key
+        final long[] keys = new long[stringSlots.size()];
+        int count = 0;
+        for (String name : stringSlots.keySet()) {
+            final Long key = parseLong(name);
+            if (key != null) {
+                keys[count++] = key;
+            }
+        }
+        final long[] longKeys = Arrays.copyOf(keys, count);
+        Arrays.sort(longKeys);
+        final int[] longSlots = new int[count];
+        for (int i = 0; i < count; i++) {
+            longSlots[i] = stringSlots.get(Long.toString(longKeys[i]));
+        }
+        return new SpreadSlots(keyColumn, null, longKeys, longSlots);
+    }
+
+    // Returns the slot of the key of the current record, or NONE if the key is null or not declared.
+    int lookup(PageReader pageReader)
+    {
+        if (pageReader.isNull(keyColumn)) {
+            return NONE;
+        }
+        if (stringSlots != null) {
+            final Integer slot = stringSlots.get(pageReader.getString(keyColumn));
+            return slot == null ? NONE : slot;
+        }
+        final int index = Arrays.binarySearch(longKeys, pageReader.getLong(keyColumn));
+        return index < 0 ? NONE : longSlots[index];
+    }
+
+    private static Long parseLong(String name)
+    {
+        try {
+            final long key = Long.parseLong(name);
+            return Long.toString(key).equals(name) ? key : null;
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package net.okkez.embulk.filter.pivot;
+
+// A small direct-mapped cache that hands out one shared instance for recently seen equal strings.
+// Output pages then refer to the same String object instead of keeping equal copies alive.
+final class StringPool
+{
+    private final String[] entries;
+    private final int mask;
+
+    StringPool(int capacity)
+    {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        this.entries = new String[capacity];
+        this.mask = capacity - 1;
+    }
+
+    String intern(String s)
+    {
+        final int h = s.hashCode();
+        final int slot = (h ^ (h >>> 16)) & mask;
+        final String cached = entries[slot];
+        if (cached != null && (cached == s || cached.equals(s))) {
+            return cached;
+        }
+        entries[slot] = s;
+        return s;
+    }
+}
@@ -0,0 +1,81 @@
+package net.okkez.embulk.filter.pivot;
+
+import org.embulk.config.ConfigException;
+import org.embulk.spi.DataException;
+import org.embulk.util.config.units.ColumnConfig;
+import org.embulk.util.timestamp.TimestampFormatter;
+
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+// Formats and parses timestamps of one column with Ruby strftime patterns like other Embulk plugins,
+// or java.time patterns prefixed with "java:". The formatter is built once and the last formatted
+// value is cached, because consecutive cells often carry the same timestamp.
+final class TimestampFormat
+{
+    static final String DEFAULT_FORMAT = "%Y-%m-%d %H:%M:%S.%N %z";
+    static final String DEFAULT_TIMEZONE = "UTC";
+
+    private final TimestampFormatter formatter;
+    private Instant lastInstant;
+    private String lastFormatted;
+
+    TimestampFormat(String pattern, String timezone)
+    {
+        try {
+            this.formatter = newFormatter(pattern, timezone);
+        }
+        catch (IllegalArgumentException | DateTimeException e) {
+            throw new ConfigException("Invalid timestamp format or timezone: " + e.getMessage(), e);
+        }
+    }
+
+    // java: patterns accept only a fixed offset as the default zone
+    private static TimestampFormatter newFormatter(String pattern, String timezone)
+    {
+        if (!pattern.startsWith("java:")) {
+            return TimestampFormatter.builder(pattern, true).setDefaultZoneFromString(timezone).build();
+        }
+        final ZoneId zone = ZoneId.of(timezone).normalized();
+        if (!(zone instanceof ZoneOffset)) {
+            throw new ConfigException("timezone of a java: format must be a fixed offset such as +09:00, but was " + timezone);
+        }
+        return TimestampFormatter.builder(pattern, true).setDefaultZoneOffset((ZoneOffset) zone).build();
+    }
+
+    static TimestampFormat of(ColumnConfig columnConfig)
+    {
+        return new TimestampFormat(
+                columnConfig.getOption().get(String.class, "format", DEFAULT_FORMAT),
+                columnConfig.getOption().get(String.class, "timezone", DEFAULT_TIMEZONE));
+    }
+
+    // format and timezone of a declared column, each falling back to the one of the given column
+    static TimestampFormat of(ColumnConfig columnConfig, ColumnConfig fallback)
+    {
+        return new TimestampFormat(
+                columnConfig.getOption().get(String.class, "format", fallback.getOption().get(String.class, "format", DEFAULT_FORMAT)),
+                columnConfig.getOption().get(String.class, "timezone", fallback.getOption().get(String.class, "timezone", DEFAULT_TIMEZONE)));
+    }
+
+    String format(Instant instant)
+    {
+        if (!instant.equals(lastInstant)) {
+            lastFormatted = formatter.format(instant);
+            lastInstant = instant;
+        }
+        return lastFormatted;
+    }
+
+    Instant parse(String s)
+    {
+        try {
+            return formatter.parse(s);
+        }
+        catch (DateTimeException e) {
+            throw new DataException("Failed to parse timestamp: " + s);
+        }
+    }
+}
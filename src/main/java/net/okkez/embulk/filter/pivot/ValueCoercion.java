@@ -0,0 +1,459 @@
+package net.okkez.embulk.filter.pivot;
+
+import org.embulk.config.ConfigException;
+import org.embulk.spi.Column;
+import org.embulk.spi.DataException;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.type.Type;
+import org.embulk.spi.type.Types;
+import org.msgpack.value.Value;
+import org.msgpack.value.ValueFactory;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+
+// Builds copiers that convert a source column to the type of the value column.
+// The conversion is chosen once per column, so the hot path runs a single specialized lambda per cell.
+final class ValueCoercion
+{
+    private ValueCoercion()
+    {
+    }
+
+    static void validate(Type from, Type to)
+    {
+        if ((Types.TIMESTAMP.equals(from) && Types.BOOLEAN.equals(to))
+                || (Types.BOOLEAN.equals(from) && Types.TIMESTAMP.equals(to))
+                || (Types.JSON.equals(from) && Types.TIMESTAMP.equals(to))) {
+            throw new ConfigException(String.format("Cannot coerce %s to %s", from, to));
+        }
+    }
+
+    static ValueCopier of(Column source, Column target, TimestampFormat timestampFormat)
+    {
+        validate(source.getType(), target.getType());
+        final Type to = target.getType();
+        if (Types.BOOLEAN.equals(to)) {
+            return new BooleanTarget(source, target.getIndex(), toBoolean(source));
+        }
+        else if (Types.LONG.equals(to)) {
+            return new LongTarget(source, target.getIndex(), toLong(source));
+        }
+        else if (Types.DOUBLE.equals(to)) {
+            return new DoubleTarget(source, target.getIndex(), toDouble(source));
+        }
+        else if (Types.STRING.equals(to)) {
+            return new ObjectTarget<>(source, target.getIndex(), toString(source, timestampFormat), PageBuilder::setString,
+                    ValueCodec::writeString, ValueCodec::readString);
+        }
+        else if (Types.TIMESTAMP.equals(to)) {
+            return new ObjectTarget<>(source, target.getIndex(), toInstant(source, timestampFormat), ValueCoercion::setTimestamp,
+                    ValueCodec::writeInstant, ValueCodec::readInstant);
+        }
+        else {
+            return new ObjectTarget<>(source, target.getIndex(), toJson(source, timestampFormat), PageBuilder::setJson,
+                    ValueCodec::writeJson, ValueCodec::readJson);
+        }
+    }
+
+    private static Predicate<PageReader> toBoolean(Column c)
+    {
+        final Type from = c.getType();
+        if (Types.BOOLEAN.equals(from)) {
+            return r -> r.getBoolean(c);
+        }
+        else if (Types.LONG.equals(from)) {
+            return r -> r.getLong(c) != 0L;
+        }
+        else if (Types.DOUBLE.equals(from)) {
+            return r -> r.getDouble(c) != 0.0;
+        }
+        else if (Types.STRING.equals(from)) {
+            return r -> parseBoolean(r.getString(c));
+        }
+        else {
+            return r -> {
+                final Value v = r.getJson(c);
+                if (!v.isBooleanValue()) {
+                    throw new DataException("Cannot coerce JSON to boolean: " + v.toJson());
+                }
+                return v.asBooleanValue().getBoolean();
+            };
+        }
+    }
+
+    private static ToLongFunction<PageReader> toLong(Column c)
+    {
+        final Type from = c.getType();
+        if (Types.BOOLEAN.equals(from)) {
+            return r -> r.getBoolean(c) ? 1L : 0L;
+        }
+        else if (Types.LONG.equals(from)) {
+            return r -> r.getLong(c);
+        }
+        else if (Types.DOUBLE.equals(from)) {
+            return r -> toLongExactly(r.getDouble(c));
+        }
+        else if (Types.STRING.equals(from)) {
+            return r -> {
+                final String s = r.getString(c);
+                try {
+                    return Long.parseLong(s);
+                }
+                catch (NumberFormatException e) {
+                    throw new DataException("Cannot coerce string to long: " + s);
+                }
+            };
+        }
+        else if (Types.TIMESTAMP.equals(from)) {
+            return r -> getInstant(r, c).getEpochSecond();
+        }
+        else {
+            return r -> {
+                final Value v = r.getJson(c);
+                if (v.isIntegerValue()) {
+                    return v.asIntegerValue().toLong();
+                }
+                else if (v.isFloatValue()) {
+                    return toLongExactly(v.asFloatValue().toDouble());
+                }
+                throw new DataException("Cannot coerce JSON to long: " + v.toJson());
+            };
+        }
+    }
+
+    // Rejects fractions, NaN and values out of the range of long instead of truncating or saturating them
+    private static long toLongExactly(double v)
+    {
+        if (v != Math.rint(v) || v < -0x1p63 || v >= 0x1p63) {
+            throw new DataException("Cannot coerce double to long: " + v);
+        }
+        return (long) v;
+    }
+
+    private static ToDoubleFunction<PageReader> toDouble(Column c)
+    {
+        final Type from = c.getType();
+        if (Types.BOOLEAN.equals(from)) {
+            return r -> r.getBoolean(c) ? 1.0 : 0.0;
+        }
+        else if (Types.LONG.equals(from)) {
+            return r -> (double) r.getLong(c);
+        }
+        else if (Types.DOUBLE.equals(from)) {
+            return r -> r.getDouble(c);
+        }
+        else if (Types.STRING.equals(from)) {
+            return r -> {
+                final String s = r.getString(c);
+                try {
+                    return Double.parseDouble(s);
+                }
+                catch (NumberFormatException e) {
+                    throw new DataException("Cannot coerce string to double: " + s);
+                }
+            };
+        }
+        else if (Types.TIMESTAMP.equals(from)) {
+            return r -> {
+                final Instant t = getInstant(r, c);
+                return t.getEpochSecond() + t.getNano() / 1e9;
+            };
+        }
+        else {
+            return r -> {
+                final Value v = r.getJson(c);
+                if (v.isNumberValue()) {
+                    return v.asNumberValue().toDouble();
+                }
+                throw new DataException("Cannot coerce JSON to double: " + v.toJson());
+            };
+        }
+    }
+
+    private static Function<PageReader, String> toString(Column c, TimestampFormat timestampFormat)
+    {
+        final Type from = c.getType();
+        if (Types.BOOLEAN.equals(from)) {
+            return r -> r.getBoolean(c) ? "true" : "false";
+        }
+        else if (Types.LONG.equals(from)) {
+            return r -> Long.toString(r.getLong(c));
+        }
+        else if (Types.DOUBLE.equals(from)) {
+            return r -> Double.toString(r.getDouble(c));
+        }
+        else if (Types.STRING.equals(from)) {
+            return r -> r.getString(c);
+        }
+        else if (Types.TIMESTAMP.equals(from)) {
+            return r -> timestampFormat.format(getInstant(r, c));
+        }
+        else {
+            return r -> r.getJson(c).toJson();
+        }
+    }
+
+    private static Function<PageReader, Instant> toInstant(Column c, TimestampFormat timestampFormat)
+    {
+        final Type from = c.getType();
+        if (Types.LONG.equals(from)) {
+            return r -> Instant.ofEpochSecond(r.getLong(c));
+        }
+        else if (Types.DOUBLE.equals(from)) {
+            return r -> {
+                final double v = r.getDouble(c);
+                final long seconds = (long) Math.floor(v);
+                return Instant.ofEpochSecond(seconds, (long) ((v - seconds) * 1e9));
+            };
+        }
+        else if (Types.STRING.equals(from)) {
+            return r -> timestampFormat.parse(r.getString(c));
+        }
+        else {
+            return r -> getInstant(r, c);
+        }
+    }
+
+    private static Function<PageReader, Value> toJson(Column c, TimestampFormat timestampFormat)
+    {
+        final Type from = c.getType();
+        if (Types.BOOLEAN.equals(from)) {
+            return r -> ValueFactory.newBoolean(r.getBoolean(c));
+        }
+        else if (Types.LONG.equals(from)) {
+            return r -> ValueFactory.newInteger(r.getLong(c));
+        }
+        else if (Types.DOUBLE.equals(from)) {
+            return r -> ValueFactory.newFloat(r.getDouble(c));
+        }
+        else if (Types.STRING.equals(from)) {
+            return r -> ValueFactory.newString(r.getString(c));
+        }
+        else if (Types.TIMESTAMP.equals(from)) {
+            return r -> ValueFactory.newString(timestampFormat.format(getInstant(r, c)));
+        }
+        else {
+            return r -> r.getJson(c);
+        }
+    }
+
+    private static boolean parseBoolean(String s)
+    {
+        if ("true".equalsIgnoreCase(s) || "1".equals(s)) {
+            return true;
+        }
+        else if ("false".equalsIgnoreCase(s) || "0".equals(s)) {
+            return false;
+        }
+        throw new DataException("Cannot coerce string to boolean: " + s);
+    }
+
+    private static Instant getInstant(PageReader pageReader, Column c)
+    {
+        return PageCompat.getTimestamp(pageReader, c);
+    }
+
+    private static void setTimestamp(PageBuilder pageBuilder, int index, Instant value)
+    {
+        PageCompat.setTimestamp(pageBuilder, index, value);
+    }
+
+    private interface Setter<T>
+    {
+        void set(PageBuilder pageBuilder, int index, T value);
+    }
+
+    private interface Encoder<T>
+    {
+        void encode(DataOutput out, T value) throws IOException;
+    }
+
+    private interface Decoder<T>
+    {
+        T decode(DataInput in) throws IOException;
+    }
+
+    private static final class BooleanTarget extends ValueCopier
+    {
+        private final Predicate<PageReader> reader;
+        private boolean value;
+
+        BooleanTarget(Column source, int outputIndex, Predicate<PageReader> reader)
+        {
+            super(source, outputIndex);
+            this.reader = reader;
+        }
+
+        @Override
+        protected void loadValue(PageReader pageReader)
+        {
+            value = reader.test(pageReader);
+        }
+
+        @Override
+        protected boolean equalsValue(PageReader pageReader)
+        {
+            return value == reader.test(pageReader);
+        }
+
+        @Override
+        protected void encodeValue(DataOutput out) throws IOException
+        {
+            out.writeBoolean(value);
+        }
+
+        @Override
+        protected void decodeValue(DataInput in) throws IOException
+        {
+            value = in.readBoolean();
+        }
+
+        @Override
+        protected void writeValue(PageBuilder pageBuilder)
+        {
+            pageBuilder.setBoolean(outputIndex, value);
+        }
+    }
+
+    private static final class LongTarget extends ValueCopier
+    {
+        private final ToLongFunction<PageReader> reader;
+        private long value;
+
+        LongTarget(Column source, int outputIndex, ToLongFunction<PageReader> reader)
+        {
+            super(source, outputIndex);
+            this.reader = reader;
+        }
+
+        @Override
+        protected void loadValue(PageReader pageReader)
+        {
+            value = reader.applyAsLong(pageReader);
+        }
+
+        @Override
+        protected boolean equalsValue(PageReader pageReader)
+        {
+            return value == reader.applyAsLong(pageReader);
+        }
+
+        @Override
+        protected void encodeValue(DataOutput out) throws IOException
+        {
+            out.writeLong(value);
+        }
+
+        @Override
+        protected void decodeValue(DataInput in) throws IOException
+        {
+            value = in.readLong();
+        }
+
+        @Override
+        protected void writeValue(PageBuilder pageBuilder)
+        {
+            pageBuilder.setLong(outputIndex, value);
+        }
+    }
+
+    private static final class DoubleTarget extends ValueCopier
+    {
+        private final ToDoubleFunction<PageReader> reader;
+        private double value;
+
+        DoubleTarget(Column source, int outputIndex, ToDoubleFunction<PageReader> reader)
+        {
+            super(source, outputIndex);
+            this.reader = reader;
+        }
+
+        @Override
+        protected void loadValue(PageReader pageReader)
+        {
+            value = reader.applyAsDouble(pageReader);
+        }
+
+        @Override
+        protected boolean equalsValue(PageReader pageReader)
+        {
+            return Double.compare(value, reader.applyAsDouble(pageReader)) == 0;
+        }
+
+        @Override
+        protected void encodeValue(DataOutput out) throws IOException
+        {
+            out.writeDouble(value);
+        }
+
+        @Override
+        protected void decodeValue(DataInput in) throws IOException
+        {
+            value = in.readDouble();
+        }
+
+        @Override
+        protected void writeValue(PageBuilder pageBuilder)
+        {
+            pageBuilder.setDouble(outputIndex, value);
+        }
+    }
+
+    private static final class ObjectTarget<T> extends ValueCopier
+    {
+        private final Function<PageReader, T> reader;
+        private final Setter<T> setter;
+        private final Encoder<T> encoder;
+        private final Decoder<T> decoder;
+        private T value;
+
+        ObjectTarget(Column source, int outputIndex, Function<PageReader, T> reader, Setter<T> setter,
+                Encoder<T> encoder, Decoder<T> decoder)
+        {
+            super(source, outputIndex);
+            this.reader = reader;
+            this.setter = setter;
+            this.encoder = encoder;
+            this.decoder = decoder;
+        }
+
+        @Override
+        protected void loadValue(PageReader pageReader)
+        {
+            value = reader.apply(pageReader);
+        }
+
+        @Override
+        protected boolean equalsValue(PageReader pageReader)
+        {
+            return Objects.equals(value, reader.apply(pageReader));
+        }
+
+        @Override
+        protected void encodeValue(DataOutput out) throws IOException
+        {
+            encoder.encode(out, value);
+        }
+
+        @Override
+        protected void decodeValue(DataInput in) throws IOException
+        {
+            value = decoder.decode(in);
+        }
+
+        @Override
+        protected void writeValue(PageBuilder pageBuilder)
+        {
+            setter.set(pageBuilder, outputIndex, value);
+        }
+    }
+}
@@ -0,0 +1,380 @@
+package net.okkez.embulk.filter.pivot;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.ColumnVisitor;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageReader;
+import org.msgpack.value.Value;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.time.Instant;
+
+// Copies one input column to one output column. load() and write() are split so that
+// a value can be decoded once per input record and written to several output rows.
+abstract class ValueCopier
+{
+    protected final Column source;
+    protected final int outputIndex;
+    private boolean isNull;
+
+    ValueCopier(Column source, int outputIndex)
+    {
+        this.source = source;
+        this.outputIndex = outputIndex;
+    }
+
+    public final void copy(PageReader pageReader, PageBuilder pageBuilder)
+    {
+        load(pageReader);
+        write(pageBuilder);
+    }
+
+    public final void load(PageReader pageReader)
+    {
+        isNull = pageReader.isNull(source);
+        if (!isNull) {
+            loadValue(pageReader);
+        }
+    }
+
+    public final void write(PageBuilder pageBuilder)
+    {
+        if (isNull) {
+            pageBuilder.setNull(outputIndex);
+        }
+        else {
+            writeValue(pageBuilder);
+        }
+    }
+
+    // Whether the current record holds the same value as the last load(), without decoding into a new object.
+    public final boolean isSameAs(PageReader pageReader)
+    {
+        final boolean otherIsNull = pageReader.isNull(source);
+        if (isNull || otherIsNull) {
+            return isNull == otherIsNull;
+        }
+        return equalsValue(pageReader);
+    }
+
+    // Serializes the loaded value, so that it can be restored by decode() and written later.
+    public final void encode(DataOutput out) throws IOException
+    {
+        out.writeBoolean(isNull);
+        if (!isNull) {
+            encodeValue(out);
+        }
+    }
+
+    public final void decode(DataInput in) throws IOException
+    {
+        isNull = in.readBoolean();
+        if (!isNull) {
+            decodeValue(in);
+        }
+    }
+
+    protected abstract void loadValue(PageReader pageReader);
+
+    protected abstract void encodeValue(DataOutput out) throws IOException;
+
+    protected abstract void decodeValue(DataInput in) throws IOException;
+
+    protected abstract boolean equalsValue(PageReader pageReader);
+
+    protected abstract void writeValue(PageBuilder pageBuilder);
+
+    public static ValueCopier of(Column source, int outputIndex)
+    {
+        return of(source, outputIndex, null);
+    }
+
+    public static ValueCopier of(Column source, int outputIndex, StringPool stringPool)
+    {
+        final ValueCopier[] resolved = new ValueCopier[1];
+        source.visit(new ColumnVisitor()
+        {
+            @Override
+            public void booleanColumn(Column column)
+            {
+                resolved[0] = new BooleanCopier(column, outputIndex);
+            }
+
+            @Override
+            public void longColumn(Column column)
+            {
+                resolved[0] = new LongCopier(column, outputIndex);
+            }
+
+            @Override
+            public void doubleColumn(Column column)
+            {
+                resolved[0] = new DoubleCopier(column, outputIndex);
+            }
+
+            @Override
+            public void stringColumn(Column column)
+            {
+                resolved[0] = new StringCopier(column, outputIndex, stringPool);
+            }
+
+            @Override
+            public void timestampColumn(Column column)
+            {
+                resolved[0] = new TimestampCopier(column, outputIndex);
+            }
+
+            @Override
+            public void jsonColumn(Column column)
+            {
+                resolved[0] = new JsonCopier(column, outputIndex);
+            }
+        });
+        return resolved[0];
+    }
+
+    private static final class BooleanCopier extends ValueCopier
+    {
+        private boolean value;
+
+        BooleanCopier(Column source, int outputIndex)
+        {
+            super(source, outputIndex);
+        }
+
+        @Override
+        protected void loadValue(PageReader pageReader)
+        {
+            value = pageReader.getBoolean(source);
+        }
+
+        @Override
+        protected boolean equalsValue(PageReader pageReader)
+        {
+            return value == pageReader.getBoolean(source);
+        }
+
+        @Override
+        protected void encodeValue(DataOutput out) throws IOException
+        {
+            out.writeBoolean(value);
+        }
+
+        @Override
+        protected void decodeValue(DataInput in) throws IOException
+        {
+            value = in.readBoolean();
+        }
+
+        @Override
+        protected void writeValue(PageBuilder pageBuilder)
+        {
+            pageBuilder.setBoolean(outputIndex, value);
+        }
+    }
+
+    private static final class LongCopier extends ValueCopier
+    {
+        private long value;
+
+        LongCopier(Column source, int outputIndex)
+        {
+            super(source, outputIndex);
+        }
+
+        @Override
+        protected void loadValue(PageReader pageReader)
+        {
+            value = pageReader.getLong(source);
+        }
+
+        @Override
+        protected boolean equalsValue(PageReader pageReader)
+        {
+            return value == pageReader.getLong(source);
+        }
+
+        @Override
+        protected void encodeValue(DataOutput out) throws IOException
+        {
+            out.writeLong(value);
+        }
+
+        @Override
+        protected void decodeValue(DataInput in) throws IOException
+        {
+            value = in.readLong();
+        }
+
+        @Override
+        protected void writeValue(PageBuilder pageBuilder)
+        {
+            pageBuilder.setLong(outputIndex, value);
+        }
+    }
+
+    private static final class DoubleCopier extends ValueCopier
+    {
+        private double value;
+
+        DoubleCopier(Column source, int outputIndex)
+        {
+            super(source, outputIndex);
+        }
+
+        @Override
+        protected void loadValue(PageReader pageReader)
+        {
+            value = pageReader.getDouble(source);
+        }
+
+        @Override
+        protected boolean equalsValue(PageReader pageReader)
+        {
+            return Double.compare(value, pageReader.getDouble(source)) == 0;
+        }
+
+        @Override
+        protected void encodeValue(DataOutput out) throws IOException
+        {
+            out.writeDouble(value);
+        }
+
+        @Override
+        protected void decodeValue(DataInput in) throws IOException
+        {
+            value = in.readDouble();
+        }
+
+        @Override
+        protected void writeValue(PageBuilder pageBuilder)
+        {
+            pageBuilder.setDouble(outputIndex, value);
+        }
+    }
+
+    private static final class StringCopier extends ValueCopier
+    {
+        private final StringPool stringPool;
+        private String value;
+
+        StringCopier(Column source, int outputIndex, StringPool stringPool)
+        {
+            super(source, outputIndex);
+            this.stringPool = stringPool;
+        }
+
+        @Override
+        protected void loadValue(PageReader pageReader)
+        {
+            final String s = pageReader.getString(source);
+            value = stringPool == null ? s : stringPool.intern(s);
+        }
+
+        @Override
+        protected boolean equalsValue(PageReader pageReader)
+        {
+            return value.equals(pageReader.getString(source));
+        }
+
+        @Override
+        protected void encodeValue(DataOutput out) throws IOException
+        {
+            ValueCodec.writeString(out, value);
+        }
+
+        @Override
+        protected void decodeValue(DataInput in) throws IOException
+        {
+            value = ValueCodec.readString(in);
+        }
+
+        @Override
+        protected void writeValue(PageBuilder pageBuilder)
+        {
+            pageBuilder.setString(outputIndex, value);
+        }
+    }
+
+    private static final class TimestampCopier extends ValueCopier
+    {
+        private Instant value;
+
+        TimestampCopier(Column source, int outputIndex)
+        {
+            super(source, outputIndex);
+        }
+
+        @Override
+        protected void loadValue(PageReader pageReader)
+        {
+            value = PageCompat.getTimestamp(pageReader, source);
+        }
+
+        @Override
+        protected boolean equalsValue(PageReader pageReader)
+        {
+            return value.equals(PageCompat.getTimestamp(pageReader, source));
+        }
+
+        @Override
+        protected void encodeValue(DataOutput out) throws IOException
+        {
+            ValueCodec.writeInstant(out, value);
+        }
+
+        @Override
+        protected void decodeValue(DataInput in) throws IOException
+        {
+            value = ValueCodec.readInstant(in);
+        }
+
+        @Override
+        protected void writeValue(PageBuilder pageBuilder)
+        {
+            PageCompat.setTimestamp(pageBuilder, outputIndex, value);
+        }
+    }
+
+    private static final class JsonCopier extends ValueCopier
+    {
+        private Value value;
+
+        JsonCopier(Column source, int outputIndex)
+        {
+            super(source, outputIndex);
+        }
+
+        @Override
+        protected void loadValue(PageReader pageReader)
+        {
+            value = pageReader.getJson(source);
+        }
+
+        @Override
+        protected boolean equalsValue(PageReader pageReader)
+        {
+            return value.equals(pageReader.getJson(source));
+        }
+
+        @Override
+        protected void encodeValue(DataOutput out) throws IOException
+        {
+            ValueCodec.writeJson(out, value);
+        }
+
+        @Override
+        protected void decodeValue(DataInput in) throws IOException
+        {
+            value = ValueCodec.readJson(in);
+        }
+
+        @Override
+        protected void writeValue(PageBuilder pageBuilder)
+        {
+            pageBuilder.setJson(outputIndex, value);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package net.okkez.embulk.filter.pivot;
+
+import net.okkez.embulk.filter.pivot.PivotFilterPlugin.ConditionTask;
+import net.okkez.embulk.filter.pivot.PivotFilterPlugin.Operator;
+import org.embulk.config.ConfigException;
+import org.embulk.spi.Column;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.type.Type;
+import org.embulk.spi.type.Types;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntPredicate;
+import java.util.function.ToIntFunction;
+
+// Compiles where.values into a predicate per expanding column. Literals are parsed once with the type of the column.
+final class Where
+{
+    private Where()
+    {
+    }
+
+    // Returns null when every value of the column is kept, so the caller can avoid the check entirely.
+    static CellPredicate build(List<ConditionTask> conditions, Column column)
+    {
+        final List<CellPredicate> predicates = new ArrayList<>();
+        for (ConditionTask condition : conditions) {
+            predicates.add(buildCondition(condition.getOperator(), condition.getValue().orElse(null), column));
+        }
+        if (predicates.isEmpty()) {
+            return null;
+        }
+        if (predicates.size() == 1) {
+            return predicates.get(0);
+        }
+        final CellPredicate[] all = predicates.toArray(new CellPredicate[0]);
+        return reader -> {
+            for (CellPredicate p : all) {
+                if (!p.test(reader)) {
+                    return false;
+                }
+            }
+            return true;
+        };
+    }
+
+    // Merges a skip_values predicate and a where predicate into one that tells whether the cell is skipped.
+    static CellPredicate skipUnless(CellPredicate skip, CellPredicate keep)
+    {
+        if (keep == null) {
+            return skip;
+        }
+        if (skip == null) {
+            return reader -> !keep.test(reader);
+        }
+        return reader -> skip.test(reader) || !keep.test(reader);
+    }
+
+    private static CellPredicate buildCondition(Operator operator, String literal, Column column)
+    {
+        if (operator == Operator.IS_NULL) {
+            return reader -> reader.isNull(column);
+        }
+        if (operator == Operator.IS_NOT_NULL) {
+            return reader -> !reader.isNull(column);
+        }
+        if (literal == null) {
+            throw new ConfigException(String.format("where.values operator '%s' requires a value", operator.getSymbol()));
+        }
+        final ToIntFunction<PageReader> compare = buildComparison(operator, literal, column);
+        final IntPredicate accepts = operator.getResultTest();
+        // Comparisons never match null, like SQL
+        return reader -> !reader.isNull(column) && accepts.test(compare.applyAsInt(reader));
+    }
+
+    private static ToIntFunction<PageReader> buildComparison(Operator operator, String literal, Column column)
+    {
+        final Type type = column.getType();
+        if (Types.LONG.equals(type)) {
+            try {
+                final long value = Long.parseLong(literal.trim());
+                return reader -> Long.compare(reader.getLong(column), value);
+            }
+            catch (NumberFormatException e) {
+                final double value = parseDouble(literal, column);
+                return reader -> Double.compare(reader.getLong(column), value);
+            }
+        }
+        if (Types.DOUBLE.equals(type)) {
+            final double value = parseDouble(literal, column);
+            return reader -> Double.compare(reader.getDouble(column), value);
+        }
+        if (Types.STRING.equals(type)) {
+            return reader -> reader.getString(column).compareTo(literal);
+        }
+        if (Types.BOOLEAN.equals(type) && (operator == Operator.EQ || operator == Operator.NE)) {
+            if (!literal.equals("true") && !literal.equals("false")) {
+                throw new ConfigException(String.format("where.values of boolean column '%s' must be true or false, but was '%s'", column.getName(), literal));
+            }
+            final boolean value = Boolean.parseBoolean(literal);
+            return reader -> Boolean.compare(reader.getBoolean(column), value);
+        }
+        if (Types.TIMESTAMP.equals(type)) {
+            try {
+                final Instant value = Instant.parse(literal.trim());
+                return reader -> PageCompat.getTimestamp(reader, column).compareTo(value);
+            }
+            catch (DateTimeParseException e) {
+                throw new ConfigException(String.format("where.values of timestamp column '%s' must be an ISO-8601 instant, but was '%s'", column.getName(), literal), e);
+            }
+        }
+        throw new ConfigException(String.format("where.values operator '%s' is not supported for %s column '%s'", operator.getSymbol(), type, column.getName()));
+    }
+
+    private static double parseDouble(String literal, Column column)
+    {
+        try {
+            return Double.parseDouble(literal.trim());
+        }
+        catch (NumberFormatException e) {
+            throw new ConfigException(String.format("where.values of column '%s' must be a number, but was '%s'", column.getName(), literal), e);
+        }
+    }
+}
@@ -2,7 +2,13 @@ package net.okkez.embulk.filter.pivot;
 
 import net.okkez.embulk.filter.pivot.PivotFilterPlugin.PluginTask;
 import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigException;
 import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskSource;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.BufferAllocator;
+import org.embulk.spi.Column;
+import org.embulk.spi.DataException;
 import org.embulk.spi.Page;
 import org.embulk.spi.PageOutput;
 import org.embulk.spi.PageReader;
@@ -12,26 +18,46 @@ import org.embulk.spi.TestPageBuilderReader.MockPageOutput;
 import org.embulk.spi.type.Types;
 import org.embulk.util.config.ConfigMapper;
 import org.embulk.util.config.ConfigMapperFactory;
+import org.embulk.util.config.TaskMapper;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.msgpack.value.ValueFactory;
+import org.slf4j.Logger;
+import org.slf4j.helpers.MessageFormatter;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class TestPivotFilterPlugin
 {
     private static final ConfigMapperFactory CONFIG_MAPPER_FACTORY = ConfigMapperFactory.builder().addDefaultModules().build();
     private static final ConfigMapper CONFIG_MAPPER = CONFIG_MAPPER_FACTORY.createConfigMapper();
+    private static final TaskMapper TASK_MAPPER = CONFIG_MAPPER_FACTORY.createTaskMapper();
 
     @Rule
     public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
     @Rule
     public ExpectedException thrown = ExpectedException.none();
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
 
     private PivotFilterPlugin plugin;
 
@@ -322,4 +348,1885 @@ public class TestPivotFilterPlugin
             assertEquals(999L, pageReader.getLong(2));
         });
     }
+
+    @Test
+    public void testOneRecordWithNullValue()
+    {
+        ConfigSource config = defaultConfig()
+                .set("common_columns", Arrays.asList("user_id"));
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("gender", Types.STRING)
+                .add("city", Types.STRING)
+                .build();
+
+        applyFilter(config, inputSchema, Arrays.asList("user-123", null, "Tokyo"), (pageReader, pageOutput) -> {
+            assertEquals(1, pageOutput.pages.size());
+            pageReader.setPage(pageOutput.pages.get(0));
+
+            assertTrue(pageReader.nextRecord());
+            assertEquals("user-123", pageReader.getString(0));
+            assertEquals("gender", pageReader.getString(1));
+            assertTrue(pageReader.isNull(2));
+            assertTrue(pageReader.nextRecord());
+            assertEquals("user-123", pageReader.getString(0));
+            assertEquals("city", pageReader.getString(1));
+            assertEquals("Tokyo", pageReader.getString(2));
+            assertFalse(pageReader.nextRecord());
+        });
+    }
+
+    @Test
+    public void testOneRecordWithJsonColumns()
+    {
+        ConfigSource valueConfig = runtime.getExec().newConfigSource()
+                .set("name", "value")
+                .set("type", "json");
+        ConfigSource config = defaultConfig()
+                .set("common_columns", Arrays.asList("user_id"))
+                .setNested("value_config", valueConfig);
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("tags", Types.JSON)
+                .add("attributes", Types.JSON)
+                .build();
+
+        applyFilter(config, inputSchema, Arrays.asList(
+                "user-123",
+                ValueFactory.newArray(ValueFactory.newString("a"), ValueFactory.newString("b")),
+                ValueFactory.newMap(ValueFactory.newString("age"), ValueFactory.newInteger(20))), (pageReader, pageOutput) -> {
+                    assertEquals(1, pageOutput.pages.size());
+                    pageReader.setPage(pageOutput.pages.get(0));
+
+                    assertTrue(pageReader.nextRecord());
+                    assertEquals("user-123", pageReader.getString(0));
+                    assertEquals("tags", pageReader.getString(1));
+                    assertEquals("[\"a\",\"b\"]", pageReader.getJson(2).toJson());
+                    assertTrue(pageReader.nextRecord());
+                    assertEquals("user-123", pageReader.getString(0));
+                    assertEquals("attributes", pageReader.getString(1));
+                    assertEquals("{\"age\":20}", pageReader.getJson(2).toJson());
+                });
+    }
+
+    @Test
+    public void testOpenOnFreshPluginInstance()
+    {
+        ConfigSource config = defaultConfig()
+                .set("common_columns", Arrays.asList("user_id"));
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("gender", Types.STRING)
+                .add("city", Types.STRING)
+                .build();
+
+        plugin.transaction(config, inputSchema, (taskSource, outputSchema) -> {
+            final MockPageOutput filteredOutput = new MockPageOutput();
+            PageOutput pageOutput = new PivotFilterPlugin().open(taskSource, inputSchema, outputSchema, filteredOutput);
+            for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), inputSchema, "user-123", "male", "Tokyo")) {
+                pageOutput.add(page);
+            }
+            pageOutput.finish();
+            pageOutput.close();
+
+            PageReader pageReader = new PageReader(outputSchema);
+            assertEquals(1, filteredOutput.pages.size());
+            pageReader.setPage(filteredOutput.pages.get(0));
+            assertTrue(pageReader.nextRecord());
+            assertEquals("user-123", pageReader.getString(0));
+            assertEquals("gender", pageReader.getString(1));
+            assertEquals("male", pageReader.getString(2));
+            assertTrue(pageReader.nextRecord());
+            assertEquals("user-123", pageReader.getString(0));
+            assertEquals("city", pageReader.getString(1));
+            assertEquals("Tokyo", pageReader.getString(2));
+            assertFalse(pageReader.nextRecord());
+        });
+    }
+
+    @Test
+    public void testPlanIsStoredInTaskSource()
+    {
+        ConfigSource config = defaultConfig()
+                .set("common_columns", Arrays.asList("user_id"));
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("gender", Types.STRING)
+                .add("age", Types.LONG)
+                .build();
+
+        plugin.transaction(config, inputSchema, (taskSource, outputSchema) -> {
+            PluginTask task = TASK_MAPPER.map(taskSource, PluginTask.class);
+            PivotPlan plan = task.getPlan();
+            assertEquals(1, plan.getCommonColumns().size());
+            assertEquals("user_id", plan.getCommonColumns().get(0).getName());
+            assertEquals(2, plan.getExpandingColumns().size());
+            assertEquals("age", plan.getExpandingColumns().get(1).getName());
+            assertEquals(2, plan.getExpandingColumns().get(1).getIndex());
+            assertEquals(Types.LONG, plan.getExpandingColumns().get(1).getType());
+            assertEquals(1, plan.getKeyIndex());
+            assertEquals(1, plan.getValueColumns().size());
+            assertEquals(2, plan.getValueColumns().get(0).getIndex());
+        });
+    }
+
+    @Test
+    public void testCommonStringsShareInstances()
+    {
+        ConfigSource config = defaultConfig()
+                .set("common_columns", Arrays.asList("user_id", "project"));
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("project", Types.STRING)
+                .add("gender", Types.STRING)
+                .add("city", Types.STRING)
+                .build();
+
+        applyFilter(config, inputSchema, Arrays.asList(
+                "user-123", new String("project-x"), "male", "Tokyo",
+                "user-124", new String("project-x"), "female", "Osaka"), (pageReader, pageOutput) -> {
+                    assertEquals(1, pageOutput.pages.size());
+                    pageReader.setPage(pageOutput.pages.get(0));
+
+                    assertTrue(pageReader.nextRecord());
+                    final String project = pageReader.getString(1);
+                    assertEquals("project-x", project);
+                    for (int i = 0; i < 3; i++) {
+                        assertTrue(pageReader.nextRecord());
+                        assertSame(project, pageReader.getString(1));
+                    }
+                    assertEquals("user-124", pageReader.getString(0));
+                    assertFalse(pageReader.nextRecord());
+                });
+    }
+
+    @Test
+    public void testSkipValues()
+    {
+        ConfigSource skipValues = runtime.getExec().newConfigSource()
+                .set("null", true)
+                .set("empty_string", true)
+                .set("values", Arrays.asList("N/A"));
+        ConfigSource config = defaultConfig()
+                .set("common_columns", Arrays.asList("user_id"))
+                .setNested("skip_values", skipValues);
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("city", Types.STRING)
+                .add("phone", Types.STRING)
+                .add("note", Types.STRING)
+                .build();
+
+        plugin.transaction(config, inputSchema, (taskSource, outputSchema) -> {
+            final MockPageOutput filteredOutput = new MockPageOutput();
+            PageOutput pageOutput = plugin.open(taskSource, inputSchema, outputSchema, filteredOutput);
+            for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), inputSchema,
+                    "user-123", "Tokyo", "", "N/A",
+                    "user-124", null, "080", null)) {
+                pageOutput.add(page);
+            }
+            pageOutput.finish();
+            assertEquals(4, ((FilteredPageOutput) pageOutput).getSkippedCells());
+            pageOutput.close();
+
+            PageReader pageReader = new PageReader(outputSchema);
+            assertEquals(1, filteredOutput.pages.size());
+            pageReader.setPage(filteredOutput.pages.get(0));
+            assertTrue(pageReader.nextRecord());
+            assertEquals("user-123", pageReader.getString(0));
+            assertEquals("city", pageReader.getString(1));
+            assertEquals("Tokyo", pageReader.getString(2));
+            assertTrue(pageReader.nextRecord());
+            assertEquals("user-124", pageReader.getString(0));
+            assertEquals("phone", pageReader.getString(1));
+            assertEquals("080", pageReader.getString(2));
+            assertFalse(pageReader.nextRecord());
+        });
+    }
+
+    @Test
+    public void testSkipNumericValues()
+    {
+        ConfigSource skipValues = runtime.getExec().newConfigSource()
+                .set("zero", true)
+                .set("values", Arrays.asList("-1"));
+        ConfigSource valueConfig = runtime.getExec().newConfigSource()
+                .set("name", "value")
+                .set("type", "long");
+        ConfigSource config = defaultConfig()
+                .set("common_columns", Arrays.asList("user_id"))
+                .setNested("value_config", valueConfig)
+                .setNested("skip_values", skipValues);
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("age", Types.LONG)
+                .add("score", Types.LONG)
+                .build();
+
+        applyFilter(config, inputSchema, Arrays.asList("user-123", 0L, 10L, "user-124", -1L, null), (pageReader, pageOutput) -> {
+            assertEquals(1, pageOutput.pages.size());
+            pageReader.setPage(pageOutput.pages.get(0));
+
+            assertTrue(pageReader.nextRecord());
+            assertEquals("user-123", pageReader.getString(0));
+            assertEquals("score", pageReader.getString(1));
+            assertEquals(10L, pageReader.getLong(2));
+            assertTrue(pageReader.nextRecord());
+            assertEquals("user-124", pageReader.getString(0));
+            assertEquals("score", pageReader.getString(1));
+            assertTrue(pageReader.isNull(2));
+            assertFalse(pageReader.nextRecord());
+        });
+    }
+
+    @Test
+    public void testSkipManyNumericValues()
+    {
+        ConfigSource skipValues = runtime.getExec().newConfigSource()
+                .set("zero", true)
+                .set("values", Arrays.asList("-1", "-2", "99", "NaN"));
+        ConfigSource valueConfig = runtime.getExec().newConfigSource()
+                .set("name", "value")
+                .set("type", "double");
+        ConfigSource config = defaultConfig()
+                .set("common_columns", Arrays.asList("user_id"))
+                .set("value_mode", "typed_columns")
+                .setNested("value_config", valueConfig)
+                .setNested("skip_values", skipValues);
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("age", Types.LONG)
+                .add("score", Types.DOUBLE)
+                .build();
+
+        applyFilter(config, inputSchema, Arrays.asList(
+                "user-1", 99L, Double.NaN,
+                "user-2", -2L, -0.0,
+                "user-3", 3L, 1.5,
+                "user-4", -1L, -2.0), (pageReader, pageOutput) -> {
+                    final List<String> rows = new ArrayList<>();
+                    for (Page page : pageOutput.pages) {
+                        pageReader.setPage(page);
+                        while (pageReader.nextRecord()) {
+                            rows.add(pageReader.getString(0) + "/" + pageReader.getString(1));
+                        }
+                    }
+                    assertEquals(Arrays.asList("user-3/age", "user-3/score"), rows);
+                });
+    }
+
+    @Test
+    public void testSkipValuesWithLongToWideIsRejected()
+    {
+        ConfigSource config = defaultConfig()
+                .set("mode", "long_to_wide")
+                .set("common_columns", Arrays.asList("user_id"))
+                .setNested("skip_values", runtime.getExec().newConfigSource().set("null", true));
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("key", Types.STRING)
+                .add("value", Types.STRING)
+                .build();
+
+        thrown.expect(ConfigException.class);
+        plugin.transaction(config, inputSchema, (taskSource, outputSchema) -> {
+        });
+    }
+
+    @Test
+    public void testExpandingAndExcludeColumns()
+    {
+        ConfigSource config = defaultConfig()
+                .set("common_columns", Arrays.asList("user_id"))
+                .set("expanding_columns", Arrays.asList("city", "/^sensor_\\d+$/"))
+                .set("exclude_columns", Arrays.asList("/_2$/"));
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("city", Types.STRING)
+                .add("phone", Types.STRING)
+                .add("sensor_1", Types.STRING)
+                .add("sensor_2", Types.STRING)
+                .add("sensor_x", Types.STRING)
+                .build();
+
+        plugin.transaction(config, inputSchema, (taskSource, outputSchema) -> {
+            PivotPlan plan = TASK_MAPPER.map(taskSource, PluginTask.class).getPlan();
+            assertEquals(1, plan.getCommonColumns().size());
+            assertEquals(2, plan.getExpandingColumns().size());
+            assertEquals("city", plan.getExpandingColumns().get(0).getName());
+            assertEquals("sensor_1", plan.getExpandingColumns().get(1).getName());
+            assertEquals(3, outputSchema.getColumnCount());
+        });
+    }
+
+    @Test
+    public void testExcludeColumnsWithoutExpandingColumns()
+    {
+        ConfigSource config = defaultConfig()
+                .set("common_columns", Arrays.asList("user_id"))
+                .set("exclude_columns", Arrays.asList("phone"));
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("city", Types.STRING)
+                .add("phone", Types.STRING)
+                .add("gender", Types.STRING)
+                .build();
+
+        applyFilter(config, inputSchema, Arrays.asList("user-123", "Tokyo", "080", "male"), (pageReader, pageOutput) -> {
+            assertEquals(1, pageOutput.pages.size());
+            pageReader.setPage(pageOutput.pages.get(0));
+
+            assertTrue(pageReader.nextRecord());
+            assertEquals("city", pageReader.getString(1));
+            assertTrue(pageReader.nextRecord());
+            assertEquals("gender", pageReader.getString(1));
+            assertFalse(pageReader.nextRecord());
+        });
+    }
+
+    @Test
+    public void testInvalidColumnPattern()
+    {
+        ConfigSource config = defaultConfig()
+                .set("expanding_columns", Arrays.asList("/[/"));
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .build();
+
+        thrown.expect(ConfigException.class);
+        plugin.transaction(config, inputSchema, (taskSource, outputSchema) -> {
+        });
+    }
+
+    @Test
+    public void testTypedValueColumns()
+    {
+        ConfigSource config = defaultConfig()
+                .set("common_columns", Arrays.asList("user_id"))
+                .set("value_mode", "typed_columns");
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("city", Types.STRING)
+                .add("age", Types.LONG)
+                .add("score", Types.DOUBLE)
+                .build();
+
+        applyFilter(config, inputSchema, Arrays.asList("user-123", "Tokyo", 20L, 1.5), (pageReader, pageOutput) -> {
+            Schema outputSchema = pageReader.getSchema();
+            assertEquals(5, outputSchema.getColumnCount());
+            assertEquals("value_string", outputSchema.getColumnName(2));
+            assertEquals(Types.STRING, outputSchema.getColumnType(2));
+            assertEquals("value_long", outputSchema.getColumnName(3));
+            assertEquals(Types.LONG, outputSchema.getColumnType(3));
+            assertEquals("value_double", outputSchema.getColumnName(4));
+            assertEquals(Types.DOUBLE, outputSchema.getColumnType(4));
+
+            assertEquals(1, pageOutput.pages.size());
+            pageReader.setPage(pageOutput.pages.get(0));
+            assertTrue(pageReader.nextRecord());
+            assertEquals("city", pageReader.getString(1));
+            assertEquals("Tokyo", pageReader.getString(2));
+            assertTrue(pageReader.isNull(3));
+            assertTrue(pageReader.isNull(4));
+            assertTrue(pageReader.nextRecord());
+            assertEquals("age", pageReader.getString(1));
+            assertTrue(pageReader.isNull(2));
+            assertEquals(20L, pageReader.getLong(3));
+            assertTrue(pageReader.isNull(4));
+            assertTrue(pageReader.nextRecord());
+            assertEquals("score", pageReader.getString(1));
+            assertTrue(pageReader.isNull(2));
+            assertTrue(pageReader.isNull(3));
+            assertEquals(1.5, pageReader.getDouble(4), 0.0);
+            assertFalse(pageReader.nextRecord());
+        });
+    }
+
+    @Test
+    public void testCoerceToString()
+    {
+        ConfigSource valueConfig = runtime.getExec().newConfigSource()
+                .set("name", "value")
+                .set("type", "string")
+                .set("format", "%Y-%m-%dT%H:%M:%S%:z")
+                .set("timezone", "Asia/Tokyo");
+        ConfigSource config = defaultConfig()
+                .set("common_columns", Arrays.asList("user_id"))
+                .set("value_mode", "coerce")
+                .setNested("value_config", valueConfig);
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("age", Types.LONG)
+                .add("score", Types.DOUBLE)
+                .add("active", Types.BOOLEAN)
+                .add("created_at", Types.TIMESTAMP)
+                .add("tags", Types.JSON)
+                .build();
+
+        applyFilter(config, inputSchema, Arrays.asList(
+                "user-123", 20L, 1.5, true,
+                org.embulk.spi.time.Timestamp.ofEpochSecond(0L),
+                ValueFactory.newArray(ValueFactory.newString("a"))), (pageReader, pageOutput) -> {
+                    assertEquals(1, pageOutput.pages.size());
+                    pageReader.setPage(pageOutput.pages.get(0));
+                    assertTrue(pageReader.nextRecord());
+                    assertEquals("20", pageReader.getString(2));
+                    assertTrue(pageReader.nextRecord());
+                    assertEquals("1.5", pageReader.getString(2));
+                    assertTrue(pageReader.nextRecord());
+                    assertEquals("true", pageReader.getString(2));
+                    assertTrue(pageReader.nextRecord());
+                    assertEquals("1970-01-01T09:00:00+09:00", pageReader.getString(2));
+                    assertTrue(pageReader.nextRecord());
+                    assertEquals("[\"a\"]", pageReader.getString(2));
+                    assertFalse(pageReader.nextRecord());
+                });
+    }
+
+    @Test
+    public void testCoerceToLong()
+    {
+        ConfigSource valueConfig = runtime.getExec().newConfigSource()
+                .set("name", "value")
+                .set("type", "long");
+        ConfigSource config = defaultConfig()
+                .set("common_columns", Arrays.asList("user_id"))
+                .set("value_mode", "coerce")
+                .setNested("value_config", valueConfig);
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("age", Types.STRING)
+                .add("score", Types.DOUBLE)
+                .add("active", Types.BOOLEAN)
+                .build();
+
+        applyFilter(config, inputSchema, Arrays.asList("user-123", "20", 2.0, true), (pageReader, pageOutput) -> {
+            assertEquals(1, pageOutput.pages.size());
+            pageReader.setPage(pageOutput.pages.get(0));
+            assertTrue(pageReader.nextRecord());
+            assertEquals(20L, pageReader.getLong(2));
+            assertTrue(pageReader.nextRecord());
+            assertEquals(2L, pageReader.getLong(2));
+            assertTrue(pageReader.nextRecord());
+            assertEquals(1L, pageReader.getLong(2));
+            assertFalse(pageReader.nextRecord());
+        });
+    }
+
+    @Test
+    public void testCoerceLossyDoubleToLongFails()
+    {
+        ConfigSource valueConfig = runtime.getExec().newConfigSource()
+                .set("name", "value")
+                .set("type", "long");
+        ConfigSource config = defaultConfig()
+                .set("common_columns", Arrays.asList("user_id"))
+                .set("value_mode", "coerce")
+                .setNested("value_config", valueConfig);
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("score", Types.DOUBLE)
+                .build();
+
+        applyFilter(config, inputSchema, Arrays.asList("user-1", 1.5, "user-2", Double.NaN, "user-3", Double.POSITIVE_INFINITY,
+                "user-4", 1e19, "user-5", -0x1p63), (pageReader, pageOutput) -> {
+                    assertEquals(1, pageOutput.pages.size());
+                    pageReader.setPage(pageOutput.pages.get(0));
+                    assertTrue(pageReader.nextRecord());
+                    assertEquals("user-5", pageReader.getString(0));
+                    assertEquals(Long.MIN_VALUE, pageReader.getLong(2));
+                    assertFalse(pageReader.nextRecord());
+                });
+    }
+
+    @Test
+    public void testCoerceToTimestampWithStrftimeFormat()
+    {
+        ConfigSource valueConfig = runtime.getExec().newConfigSource()
+                .set("name", "value")
+                .set("type", "timestamp");
+        ConfigSource config = defaultConfig()
+                .set("common_columns", Arrays.asList("user_id"))
+                .set("value_mode", "coerce")
+                .setNested("value_config", valueConfig);
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("created_at", Types.STRING)
+                .build();
+
+        applyFilter(config, inputSchema, Arrays.asList("user-123", "2024-01-02 03:04:05.123456 +0900"), (pageReader, pageOutput) -> {
+            pageReader.setPage(pageOutput.pages.get(0));
+            assertTrue(pageReader.nextRecord());
+            assertEquals(Instant.parse("2024-01-01T18:04:05.123456Z"), pageReader.getTimestampInstant(2));
+        });
+
+        valueConfig.set("format", "java:yyyy-MM-dd HH:mm:ss").set("timezone", "+09:00");
+        applyFilter(config.setNested("value_config", valueConfig), inputSchema, Arrays.asList("user-123", "2024-01-02 03:04:05"), (pageReader, pageOutput) -> {
+            pageReader.setPage(pageOutput.pages.get(0));
+            assertTrue(pageReader.nextRecord());
+            assertEquals(Instant.parse("2024-01-01T18:04:05Z"), pageReader.getTimestampInstant(2));
+        });
+    }
+
+    @Test
+    public void testCoerceUnsupportedType()
+    {
+        ConfigSource valueConfig = runtime.getExec().newConfigSource()
+                .set("name", "value")
+                .set("type", "boolean");
+        ConfigSource config = defaultConfig()
+                .set("value_mode", "coerce")
+                .setNested("value_config", valueConfig);
+        final Schema inputSchema = Schema.builder()
+                .add("created_at", Types.TIMESTAMP)
+                .build();
+
+        thrown.expect(ConfigException.class);
+        plugin.transaction(config, inputSchema, (taskSource, outputSchema) -> {
+        });
+    }
+
+    @Test
+    public void testLongToWideWithKeys()
+    {
+        ConfigSource config = defaultConfig()
+                .set("mode", "long_to_wide")
+                .set("common_columns", Arrays.asList("user_id"))
+                .set("keys", Arrays.asList("city", "gender", "phone"));
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("key", Types.STRING)
+                .add("value", Types.STRING)
+                .build();
+
+        applyFilter(config, inputSchema, Arrays.asList(
+                "user-123", "city", "Tokyo",
+                "user-123", "gender", "male",
+                "user-123", "unknown", "x",
+                "user-124", "phone", "080",
+                "user-124", "city", "Osaka"), (pageReader, pageOutput) -> {
+                    Schema outputSchema = pageReader.getSchema();
+                    assertEquals(4, outputSchema.getColumnCount());
+                    assertEquals("user_id", outputSchema.getColumnName(0));
+                    assertEquals("city", outputSchema.getColumnName(1));
+                    assertEquals("gender", outputSchema.getColumnName(2));
+                    assertEquals("phone", outputSchema.getColumnName(3));
+
+                    assertEquals(1, pageOutput.pages.size());
+                    pageReader.setPage(pageOutput.pages.get(0));
+                    assertTrue(pageReader.nextRecord());
+                    assertEquals("user-123", pageReader.getString(0));
+                    assertEquals("Tokyo", pageReader.getString(1));
+                    assertEquals("male", pageReader.getString(2));
+                    assertTrue(pageReader.isNull(3));
+                    assertTrue(pageReader.nextRecord());
+                    assertEquals("user-124", pageReader.getString(0));
+                    assertEquals("Osaka", pageReader.getString(1));
+                    assertTrue(pageReader.isNull(2));
+                    assertEquals("080", pageReader.getString(3));
+                    assertFalse(pageReader.nextRecord());
+                });
+    }
+
+    @Test
+    public void testLongToWideWithLongKeys()
+    {
+        ConfigSource config = defaultConfig()
+                .set("mode", "long_to_wide")
+                .set("common_columns", Arrays.asList("user_id"))
+                .set("keys", Arrays.asList("1", "-3", "07", "x"));
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("key", Types.LONG)
+                .add("value", Types.STRING)
+                .build();
+
+        applyFilter(config, inputSchema, Arrays.asList(
+                "user-123", 1L, "a",
+                "user-123", -3L, "b",
+                "user-123", 7L, "c",
+                "user-123", null, "d"), (pageReader, pageOutput) -> {
+                    pageReader.setPage(pageOutput.pages.get(0));
+                    assertTrue(pageReader.nextRecord());
+                    assertEquals("a", pageReader.getString(1));
+                    assertEquals("b", pageReader.getString(2));
+                    assertTrue(pageReader.isNull(3));
+                    assertTrue(pageReader.isNull(4));
+                    assertFalse(pageReader.nextRecord());
+                });
+    }
+
+    @Test
+    public void testLongToWideWithDeclaredColumns()
+    {
+        ConfigSource config = defaultConfig()
+                .set("mode", "long_to_wide")
+                .set("common_columns", Arrays.asList("user_id", "day"))
+                .set("columns", Arrays.asList(
+                        runtime.getExec().newConfigSource().set("name", "age").set("type", "long"),
+                        runtime.getExec().newConfigSource().set("name", "city").set("type", "string")));
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("day", Types.LONG)
+                .add("key", Types.STRING)
+                .add("value", Types.STRING)
+                .build();
+
+        applyFilter(config, inputSchema, Arrays.asList(
+                "user-123", 1L, "age", "20",
+                "user-123", 1L, "city", "Tokyo",
+                "user-123", 2L, "age", "21"), (pageReader, pageOutput) -> {
+                    Schema outputSchema = pageReader.getSchema();
+                    assertEquals(Types.LONG, outputSchema.getColumnType(2));
+                    assertEquals(Types.STRING, outputSchema.getColumnType(3));
+
+                    assertEquals(1, pageOutput.pages.size());
+                    pageReader.setPage(pageOutput.pages.get(0));
+                    assertTrue(pageReader.nextRecord());
+                    assertEquals(1L, pageReader.getLong(1));
+                    assertEquals(20L, pageReader.getLong(2));
+                    assertEquals("Tokyo", pageReader.getString(3));
+                    assertTrue(pageReader.nextRecord());
+                    assertEquals(2L, pageReader.getLong(1));
+                    assertEquals(21L, pageReader.getLong(2));
+                    assertTrue(pageReader.isNull(3));
+                    assertFalse(pageReader.nextRecord());
+                });
+    }
+
+    @Test
+    public void testLongToWideWithDeclaredTimestampFormats()
+    {
+        ConfigSource config = defaultConfig()
+                .set("mode", "long_to_wide")
+                .set("common_columns", Arrays.asList("user_id"))
+                .setNested("value_config", runtime.getExec().newConfigSource()
+                        .set("name", "value").set("type", "string").set("timezone", "Asia/Tokyo"))
+                .set("columns", Arrays.asList(
+                        runtime.getExec().newConfigSource().set("name", "born_on").set("type", "timestamp").set("format", "%Y-%m-%d"),
+                        runtime.getExec().newConfigSource().set("name", "joined_at").set("type", "timestamp").set("format", "%d/%m/%Y %H:%M").set("timezone", "UTC")));
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("key", Types.STRING)
+                .add("value", Types.STRING)
+                .build();
+
+        applyFilter(config, inputSchema, Arrays.asList(
+                "user-123", "born_on", "2000-01-02",
+                "user-123", "joined_at", "03/04/2024 05:06"), (pageReader, pageOutput) -> {
+                    pageReader.setPage(pageOutput.pages.get(0));
+                    assertTrue(pageReader.nextRecord());
+                    assertEquals(Instant.parse("2000-01-01T15:00:00Z"), pageReader.getTimestampInstant(1));
+                    assertEquals(Instant.parse("2024-04-03T05:06:00Z"), pageReader.getTimestampInstant(2));
+                    assertFalse(pageReader.nextRecord());
+                });
+    }
+
+    @Test
+    public void testLongToWideWithoutKeys()
+    {
+        ConfigSource config = defaultConfig()
+                .set("mode", "long_to_wide");
+        final Schema inputSchema = Schema.builder()
+                .add("key", Types.STRING)
+                .add("value", Types.STRING)
+                .build();
+
+        thrown.expect(ConfigException.class);
+        plugin.transaction(config, inputSchema, (taskSource, outputSchema) -> {
+        });
+    }
+
+    @Test
+    public void testLongToWideWithUnsortedInput()
+    {
+        ConfigSource config = defaultConfig()
+                .set("mode", "long_to_wide")
+                .set("sorted", false)
+                .set("common_columns", Arrays.asList("user_id"))
+                .set("keys", Arrays.asList("city", "gender"));
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("key", Types.STRING)
+                .add("value", Types.STRING)
+                .build();
+
+        applyFilter(config, inputSchema, Arrays.asList(
+                "user-123", "city", "Tokyo",
+                "user-124", "city", "Osaka",
+                "user-123", "gender", "male",
+                "user-124", "unknown", "x"), (pageReader, pageOutput) -> {
+                    assertEquals(1, pageOutput.pages.size());
+                    pageReader.setPage(pageOutput.pages.get(0));
+                    assertTrue(pageReader.nextRecord());
+                    assertEquals("user-123", pageReader.getString(0));
+                    assertEquals("Tokyo", pageReader.getString(1));
+                    assertEquals("male", pageReader.getString(2));
+                    assertTrue(pageReader.nextRecord());
+                    assertEquals("user-124", pageReader.getString(0));
+                    assertEquals("Osaka", pageReader.getString(1));
+                    assertTrue(pageReader.isNull(2));
+                    assertFalse(pageReader.nextRecord());
+                });
+    }
+
+    @Test
+    public void testLongToWideSpillsToTempFiles() throws IOException
+    {
+        final File tempDir = temporaryFolder.newFolder();
+        ConfigSource config = defaultConfig()
+                .set("mode", "long_to_wide")
+                .set("sorted", false)
+                .set("memory_budget", 1)
+                .set("temp_dir", tempDir.getPath())
+                .set("common_columns", Arrays.asList("user_id", "day"))
+                .set("columns", Arrays.asList(
+                        runtime.getExec().newConfigSource().set("name", "age").set("type", "long"),
+                        runtime.getExec().newConfigSource().set("name", "city").set("type", "string")));
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("day", Types.LONG)
+                .add("key", Types.STRING)
+                .add("value", Types.STRING)
+                .build();
+
+        plugin.transaction(config, inputSchema, (taskSource, outputSchema) -> {
+            final MockPageOutput filteredOutput = new MockPageOutput();
+            PageOutput pageOutput = plugin.open(taskSource, inputSchema, outputSchema, filteredOutput);
+            for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), inputSchema,
+                    "user-123", 1L, "age", "20",
+                    "user-124", 1L, "city", "Osaka",
+                    "user-123", 1L, "city", "Tokyo",
+                    "user-123", 1L, "age", "21",
+                    "user-124", 1L, "age", "30")) {
+                pageOutput.add(page);
+            }
+            pageOutput.finish();
+            assertEquals(5, ((AggregatingPageOutput) pageOutput).getSpillFileCount());
+            assertTrue(((AggregatingPageOutput) pageOutput).getSpilledBytes() > 0);
+            assertEquals(1, tempDir.list().length);
+            pageOutput.close();
+            assertEquals(0, tempDir.list().length);
+
+            PageReader pageReader = new PageReader(outputSchema);
+            assertEquals(1, filteredOutput.pages.size());
+            pageReader.setPage(filteredOutput.pages.get(0));
+            assertTrue(pageReader.nextRecord());
+            assertEquals("user-123", pageReader.getString(0));
+            assertEquals(21L, pageReader.getLong(2));
+            assertEquals("Tokyo", pageReader.getString(3));
+            assertTrue(pageReader.nextRecord());
+            assertEquals("user-124", pageReader.getString(0));
+            assertEquals(30L, pageReader.getLong(2));
+            assertEquals("Osaka", pageReader.getString(3));
+            assertFalse(pageReader.nextRecord());
+        });
+    }
+
+    @Test
+    public void testPipelinedOutputKeepsOrder()
+    {
+        ConfigSource config = defaultConfig()
+                .set("common_columns", Arrays.asList("user_id"))
+                .setNested("pipeline", runtime.getExec().newConfigSource()
+                        .set("workers", 2)
+                        .set("queue_depth", 2));
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("city", Types.STRING)
+                .add("phone", Types.STRING)
+                .build();
+
+        plugin.transaction(config, inputSchema, (taskSource, outputSchema) -> {
+            final MockPageOutput filteredOutput = new MockPageOutput();
+            PageOutput pageOutput = plugin.open(taskSource, inputSchema, outputSchema, filteredOutput);
+            assertTrue(pageOutput instanceof PipelinedPageOutput);
+            for (int i = 0; i < 8; i++) {
+                for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), inputSchema,
+                        "user-" + i, "Tokyo", "080")) {
+                    pageOutput.add(page);
+                }
+            }
+            pageOutput.finish();
+            pageOutput.close();
+
+            PageReader pageReader = new PageReader(outputSchema);
+            int rows = 0;
+            for (Page page : filteredOutput.pages) {
+                pageReader.setPage(page);
+                while (pageReader.nextRecord()) {
+                    assertEquals("user-" + (rows / 2), pageReader.getString(0));
+                    assertEquals(rows % 2 == 0 ? "city" : "phone", pageReader.getString(1));
+                    rows++;
+                }
+            }
+            assertEquals(16, rows);
+            // The partial pages of the workers are coalesced
+            assertEquals(1, filteredOutput.pages.size());
+        });
+    }
+
+    @Test
+    public void testPipelinedOutputKeepsOrderOfFullPages()
+    {
+        ConfigSource config = defaultConfig()
+                .set("common_columns", Arrays.asList("user_id"))
+                .setNested("output_page", runtime.getExec().newConfigSource().set("max_rows", 3))
+                .setNested("pipeline", runtime.getExec().newConfigSource()
+                        .set("workers", 2)
+                        .set("queue_depth", 2));
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("city", Types.STRING)
+                .add("phone", Types.STRING)
+                .build();
+
+        plugin.transaction(config, inputSchema, (taskSource, outputSchema) -> {
+            final MockPageOutput filteredOutput = new MockPageOutput();
+            PageOutput pageOutput = plugin.open(taskSource, inputSchema, outputSchema, filteredOutput);
+            for (int i = 0; i < 8; i += 2) {
+                // 4 rows per input page: a full page of 3 rows and a partial page
+                for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), inputSchema,
+                        "user-" + i, "Tokyo", "080", "user-" + (i + 1), "Osaka", "090")) {
+                    pageOutput.add(page);
+                }
+            }
+            pageOutput.finish();
+            pageOutput.close();
+
+            PageReader pageReader = new PageReader(outputSchema);
+            int rows = 0;
+            for (Page page : filteredOutput.pages) {
+                assertTrue(PageReader.getRecordCount(page) <= 3);
+                pageReader.setPage(page);
+                while (pageReader.nextRecord()) {
+                    assertEquals("user-" + (rows / 2), pageReader.getString(0));
+                    rows++;
+                }
+            }
+            assertEquals(16, rows);
+        });
+    }
+
+    @Test
+    public void testPipelinedOutputReleasesPagesOnClose()
+    {
+        ConfigSource config = defaultConfig()
+                .set("common_columns", Arrays.asList("user_id"))
+                .setNested("pipeline", runtime.getExec().newConfigSource()
+                        .set("workers", 1)
+                        .set("queue_depth", 8));
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("city", Types.STRING)
+                .add("phone", Types.STRING)
+                .build();
+        final TrackingBufferAllocator allocator = new TrackingBufferAllocator(runtime.getBufferAllocator());
+
+        plugin.transaction(config, inputSchema, (taskSource, outputSchema) -> {
+            final MockPageOutput filteredOutput = new MockPageOutput();
+            PageOutput pageOutput = plugin.open(taskSource, inputSchema, outputSchema, filteredOutput);
+            for (int i = 0; i < 8; i++) {
+                for (Page page : PageTestUtils.buildPage(allocator, inputSchema, "user-" + i, "Tokyo", "080")) {
+                    pageOutput.add(page);
+                }
+            }
+            // close() without finish() as on an error
+            pageOutput.close();
+            assertEquals(0, allocator.outstanding.get());
+        });
+    }
+
+    @Test
+    public void testMetrics()
+    {
+        ConfigSource config = defaultConfig()
+                .set("common_columns", Arrays.asList("user_id"))
+                .setNested("skip_values", runtime.getExec().newConfigSource().set("null", true));
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("city", Types.STRING)
+                .add("phone", Types.STRING)
+                .build();
+
+        plugin.transaction(config, inputSchema, (taskSource, outputSchema) -> {
+            final MockPageOutput filteredOutput = new MockPageOutput();
+            PageOutput pageOutput = plugin.open(taskSource, inputSchema, outputSchema, filteredOutput);
+            for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), inputSchema,
+                    "user-1", "Tokyo", "080",
+                    "user-2", "\u6771\u4eac", null)) {
+                pageOutput.add(page);
+            }
+            pageOutput.finish();
+            pageOutput.close();
+
+            PivotMetrics metrics = ((FilteredPageOutput) pageOutput).getMetrics();
+            assertEquals(2, metrics.inputRecords);
+            assertEquals(3, metrics.outputRows);
+            assertEquals(1, metrics.skipped);
+            assertEquals(0, metrics.failed);
+            assertEquals(1, metrics.pages);
+            // user ids (6 chars each), keys (4, 5 and 4 chars) and values (5, 3 and 2 chars)
+            assertEquals(6 * 3 + 13 + 10, metrics.stringBytes);
+        });
+    }
+
+    @Test
+    public void testMetricsRateLimitErrorLogs()
+    {
+        final List<String> lines = new ArrayList<>();
+        final PivotMetrics metrics = new PivotMetrics(null);
+        for (int i = 0; i < 100; i++) {
+            metrics.recordError(recordingLogger(lines), new DataException("error " + i));
+        }
+        assertEquals(100, metrics.failed);
+        assertEquals(10, lines.size());
+        assertEquals("WARN error 9", lines.get(9));
+
+        metrics.finish(recordingLogger(lines));
+        assertEquals("WARN Suppressed 90 more errors", lines.get(10));
+        assertTrue(lines.get(11), lines.get(11).startsWith("INFO Pivot task: input_records=0 output_rows=0 skipped=0 failed=100 "));
+    }
+
+    @Test
+    public void testMetricsSummary()
+    {
+        final List<String> lines = new ArrayList<>();
+        final String transactionId = PivotMetrics.beginTransaction();
+        final PivotMetrics first = new PivotMetrics(transactionId);
+        first.inputRecords = 10;
+        first.outputRows = 30;
+        first.skipped = 2;
+        first.pages = 1;
+        first.finish(recordingLogger(lines));
+        final PivotMetrics second = new PivotMetrics(transactionId);
+        second.inputRecords = 5;
+        second.outputRows = 20;
+        second.skipped = 1;
+        second.failed = 1;
+        second.pages = 2;
+        second.finish(recordingLogger(lines));
+        lines.clear();
+
+        PivotMetrics.endTransaction(transactionId, recordingLogger(lines));
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0), lines.get(0).startsWith(
+                "INFO Pivot summary: tasks=2 input_records=15 output_rows=50 expansion=3.33 skipped=3 failed=1 string_bytes=0 pages=3 "));
+        assertTrue(lines.get(0), lines.get(0).contains(" task_rows_min=20 task_rows_max=30 "));
+
+        // Tasks of a finished transaction are not added up anymore
+        new PivotMetrics(transactionId).finish(recordingLogger(lines));
+        PivotMetrics.endTransaction(transactionId, recordingLogger(lines));
+        assertEquals(2, lines.size());
+    }
+
+    // A logger recording warn and info messages as "<LEVEL> <message>"
+    private static Logger recordingLogger(List<String> lines)
+    {
+        return (Logger) Proxy.newProxyInstance(Logger.class.getClassLoader(), new Class<?>[] {Logger.class}, (proxy, method, args) -> {
+            if ((method.getName().equals("warn") || method.getName().equals("info")) && args[0] instanceof String) {
+                final Object[] arguments = args.length == 2 && args[1] instanceof Object[]
+                        ? (Object[]) args[1] : Arrays.copyOfRange(args, 1, args.length);
+                lines.add(method.getName().toUpperCase() + " " + MessageFormatter.arrayFormat((String) args[0], arguments).getMessage());
+            }
+            return method.getReturnType() == boolean.class ? Boolean.TRUE : null;
+        });
+    }
+
+    @Test
+    public void testLongKeyIsColumnIndex()
+    {
+        ConfigSource config = defaultConfig()
+                .set("common_columns", Arrays.asList("user_id"))
+                .set("key_config", runtime.getExec().newConfigSource().set("name", "key").set("type", "long"))
+                .set("key_mapping", Collections.singletonMap("phone", "100"));
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("city", Types.STRING)
+                .add("phone", Types.STRING)
+                .build();
+
+        applyFilter(config, inputSchema, Arrays.asList("user-123", "Tokyo", "080"), (pageReader, pageOutput) -> {
+            assertEquals(Types.LONG, pageReader.getSchema().getColumnType(1));
+            pageReader.setPage(pageOutput.pages.get(0));
+            assertTrue(pageReader.nextRecord());
+            assertEquals(1L, pageReader.getLong(1));
+            assertEquals("Tokyo", pageReader.getString(2));
+            assertTrue(pageReader.nextRecord());
+            assertEquals(100L, pageReader.getLong(1));
+            assertEquals("080", pageReader.getString(2));
+            assertFalse(pageReader.nextRecord());
+        });
+    }
+
+    @Test
+    public void testKeyMappingLabels()
+    {
+        ConfigSource config = defaultConfig()
+                .set("common_columns", Arrays.asList("user_id"))
+                .set("key_mapping", Collections.singletonMap("city", "CITY"));
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("city", Types.STRING)
+                .add("phone", Types.STRING)
+                .build();
+
+        applyFilter(config, inputSchema, Arrays.asList("user-123", "Tokyo", "080"), (pageReader, pageOutput) -> {
+            pageReader.setPage(pageOutput.pages.get(0));
+            assertTrue(pageReader.nextRecord());
+            assertEquals("CITY", pageReader.getString(1));
+            assertTrue(pageReader.nextRecord());
+            assertEquals("phone", pageReader.getString(1));
+            assertFalse(pageReader.nextRecord());
+        });
+    }
+
+    @Test
+    public void testInvalidKeyCode()
+    {
+        ConfigSource config = defaultConfig()
+                .set("common_columns", Arrays.asList("user_id"))
+                .set("key_config", runtime.getExec().newConfigSource().set("name", "key").set("type", "long"))
+                .set("key_mapping", Collections.singletonMap("city", "CITY"));
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("city", Types.STRING)
+                .build();
+
+        thrown.expect(ConfigException.class);
+        plugin.transaction(config, inputSchema, (taskSource, outputSchema) -> {
+        });
+    }
+
+    @Test
+    public void testJsonToLong()
+    {
+        ConfigSource config = defaultConfig()
+                .set("mode", "json_to_long")
+                .set("common_columns", Arrays.asList("user_id"))
+                .set("json_column", "attrs")
+                .set("value_config", runtime.getExec().newConfigSource().set("name", "value").set("type", "json"));
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("attrs", Types.JSON)
+                .build();
+
+        applyFilter(config, inputSchema, Arrays.asList(
+                "user-123", ValueFactory.newMap(
+                        ValueFactory.newString("city"), ValueFactory.newString("Tokyo"),
+                        ValueFactory.newString("tags"), ValueFactory.newArray(ValueFactory.newString("a"))),
+                "user-124", null), (pageReader, pageOutput) -> {
+                    Schema outputSchema = pageReader.getSchema();
+                    assertEquals(3, outputSchema.getColumnCount());
+                    assertEquals(Types.JSON, outputSchema.getColumnType(2));
+
+                    pageReader.setPage(pageOutput.pages.get(0));
+                    assertTrue(pageReader.nextRecord());
+                    assertEquals("user-123", pageReader.getString(0));
+                    assertEquals("city", pageReader.getString(1));
+                    assertEquals(ValueFactory.newString("Tokyo"), pageReader.getJson(2));
+                    assertTrue(pageReader.nextRecord());
+                    assertEquals("tags", pageReader.getString(1));
+                    assertEquals(ValueFactory.newArray(ValueFactory.newString("a")), pageReader.getJson(2));
+                    assertFalse(pageReader.nextRecord());
+                });
+    }
+
+    @Test
+    public void testJsonToLongWithRootAndDepth()
+    {
+        ConfigSource config = defaultConfig()
+                .set("mode", "json_to_long")
+                .set("json_column", "event")
+                .set("json_root", "$.attrs")
+                .set("json_depth", 2);
+        final Schema inputSchema = Schema.builder()
+                .add("event", Types.JSON)
+                .build();
+
+        applyFilter(config, inputSchema, Arrays.asList(
+                ValueFactory.newMap(ValueFactory.newString("attrs"), ValueFactory.newMap(
+                        ValueFactory.newString("size"), ValueFactory.newInteger(3),
+                        ValueFactory.newString("tags"), ValueFactory.newArray(
+                                ValueFactory.newString("a"),
+                                ValueFactory.newMap(ValueFactory.newString("b"), ValueFactory.newBoolean(true)))))),
+                (pageReader, pageOutput) -> {
+                    pageReader.setPage(pageOutput.pages.get(0));
+                    assertTrue(pageReader.nextRecord());
+                    assertEquals("size", pageReader.getString(0));
+                    assertEquals("3", pageReader.getString(1));
+                    assertTrue(pageReader.nextRecord());
+                    assertEquals("tags.0", pageReader.getString(0));
+                    assertEquals("a", pageReader.getString(1));
+                    assertTrue(pageReader.nextRecord());
+                    assertEquals("tags.1", pageReader.getString(0));
+                    assertEquals("{\"b\":true}", pageReader.getString(1));
+                    assertFalse(pageReader.nextRecord());
+                });
+    }
+
+    @Test
+    public void testJsonToLongRequiresJsonColumn()
+    {
+        ConfigSource config = defaultConfig()
+                .set("mode", "json_to_long")
+                .set("json_column", "user_id");
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .build();
+
+        thrown.expect(ConfigException.class);
+        plugin.transaction(config, inputSchema, (taskSource, outputSchema) -> {
+        });
+    }
+
+    @Test
+    public void testJsonToLongWithKeyMappingIsRejected()
+    {
+        ConfigSource config = defaultConfig()
+                .set("mode", "json_to_long")
+                .set("json_column", "attrs")
+                .set("key_mapping", Collections.singletonMap("city", "City"));
+        final Schema inputSchema = Schema.builder()
+                .add("attrs", Types.JSON)
+                .build();
+
+        thrown.expect(ConfigException.class);
+        thrown.expectMessage("key_mapping");
+        plugin.transaction(config, inputSchema, (taskSource, outputSchema) -> {
+        });
+    }
+
+    @Test
+    public void testMeasurePattern()
+    {
+        ConfigSource config = defaultConfig()
+                .set("common_columns", Arrays.asList("shop"))
+                .set("measure_pattern", "(?<period>q\\d)_(?<measure>\\w+)")
+                .setNested("skip_values", runtime.getExec().newConfigSource().set("null", true));
+        final Schema inputSchema = Schema.builder()
+                .add("shop", Types.STRING)
+                .add("q1_sales", Types.LONG)
+                .add("q1_cost", Types.DOUBLE)
+                .add("q2_sales", Types.LONG)
+                .add("q2_cost", Types.DOUBLE)
+                .add("q3_sales", Types.LONG)
+                .build();
+
+        applyFilter(config, inputSchema, Arrays.asList(
+                "shop-1", 10L, 1.5, 20L, null, null), (pageReader, pageOutput) -> {
+                    Schema outputSchema = pageReader.getSchema();
+                    assertEquals(4, outputSchema.getColumnCount());
+                    assertEquals("period", outputSchema.getColumnName(1));
+                    assertEquals("sales", outputSchema.getColumnName(2));
+                    assertEquals(Types.LONG, outputSchema.getColumnType(2));
+                    assertEquals("cost", outputSchema.getColumnName(3));
+                    assertEquals(Types.DOUBLE, outputSchema.getColumnType(3));
+
+                    assertEquals(1, pageOutput.pages.size());
+                    pageReader.setPage(pageOutput.pages.get(0));
+                    assertTrue(pageReader.nextRecord());
+                    assertEquals("shop-1", pageReader.getString(0));
+                    assertEquals("q1", pageReader.getString(1));
+                    assertEquals(10L, pageReader.getLong(2));
+                    assertEquals(1.5, pageReader.getDouble(3), 0.0);
+                    assertTrue(pageReader.nextRecord());
+                    assertEquals("q2", pageReader.getString(1));
+                    assertEquals(20L, pageReader.getLong(2));
+                    assertTrue(pageReader.isNull(3));
+                    assertFalse(pageReader.nextRecord());
+                });
+    }
+
+    @Test
+    public void testMeasurePatternWithoutMeasureGroup()
+    {
+        ConfigSource config = defaultConfig()
+                .set("measure_pattern", "(?<period>q\\d)_\\w+");
+        final Schema inputSchema = Schema.builder()
+                .add("q1_sales", Types.LONG)
+                .build();
+
+        thrown.expect(ConfigException.class);
+        plugin.transaction(config, inputSchema, (taskSource, outputSchema) -> {
+        });
+    }
+
+    @Test
+    public void testMeasureNameClashingWithCommonColumnIsRejected()
+    {
+        ConfigSource config = defaultConfig()
+                .set("common_columns", Arrays.asList("sales"))
+                .set("measure_pattern", "(?<period>q\\d)_(?<measure>\\w+)");
+        final Schema inputSchema = Schema.builder()
+                .add("sales", Types.LONG)
+                .add("q1_sales", Types.LONG)
+                .build();
+
+        thrown.expect(ConfigException.class);
+        thrown.expectMessage("Measure 'sales'");
+        plugin.transaction(config, inputSchema, (taskSource, outputSchema) -> {
+        });
+    }
+
+    @Test
+    public void testMeasurePatternWithValueModeIsRejected()
+    {
+        ConfigSource config = defaultConfig()
+                .set("value_mode", "typed_columns")
+                .set("measure_pattern", "(?<period>q\\d)_(?<measure>\\w+)");
+        final Schema inputSchema = Schema.builder()
+                .add("q1_sales", Types.LONG)
+                .build();
+
+        thrown.expect(ConfigException.class);
+        plugin.transaction(config, inputSchema, (taskSource, outputSchema) -> {
+        });
+    }
+
+    @Test
+    public void testMeasurePatternWithKeyOptionsIsRejected()
+    {
+        final Schema inputSchema = Schema.builder()
+                .add("q1_sales", Types.LONG)
+                .build();
+        for (ConfigSource config : Arrays.asList(
+                defaultConfig().set("key_mapping", Collections.singletonMap("q1_sales", "first")),
+                defaultConfig().setNested("key_config", runtime.getExec().newConfigSource().set("name", "quarter").set("type", "string")))) {
+            try {
+                plugin.transaction(config.set("measure_pattern", "(?<period>q\\d)_(?<measure>\\w+)"), inputSchema, (taskSource, outputSchema) -> {
+                });
+                fail("ConfigException is expected");
+            }
+            catch (ConfigException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("key_config and key_mapping"));
+            }
+        }
+    }
+
+    @Test
+    public void testMeasurePatternCountsSkippedCells()
+    {
+        ConfigSource config = defaultConfig()
+                .set("common_columns", Arrays.asList("shop"))
+                .set("measure_pattern", "(?<period>q\\d)_(?<measure>\\w+)")
+                .setNested("skip_values", runtime.getExec().newConfigSource().set("null", true));
+        final Schema inputSchema = Schema.builder()
+                .add("shop", Types.STRING)
+                .add("q1_sales", Types.LONG)
+                .add("q1_cost", Types.DOUBLE)
+                .add("q2_sales", Types.LONG)
+                .add("q2_cost", Types.DOUBLE)
+                .build();
+
+        plugin.transaction(config, inputSchema, (taskSource, outputSchema) -> {
+            final MockPageOutput filteredOutput = new MockPageOutput();
+            PageOutput pageOutput = plugin.open(taskSource, inputSchema, outputSchema, filteredOutput);
+            for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), inputSchema, "shop-1", 10L, null, null, null)) {
+                pageOutput.add(page);
+            }
+            pageOutput.finish();
+            pageOutput.close();
+
+            // One row for q1 with a null cost, and q2 dropped: 3 skipped cells
+            assertEquals(1, PageReader.getRecordCount(filteredOutput.pages.get(0)));
+            assertEquals(3, ((MeasurePageOutput) pageOutput).getMetrics().skipped);
+        });
+    }
+
+    @Test
+    public void testWhereKeysAndValues()
+    {
+        ConfigSource where = runtime.getExec().newConfigSource()
+                .set("keys", Arrays.asList("age", "/^score_/"))
+                .set("values", Arrays.asList(
+                        runtime.getExec().newConfigSource().set("operator", ">").set("value", "0"),
+                        runtime.getExec().newConfigSource().set("operator", "<=").set("value", "100")));
+        ConfigSource valueConfig = runtime.getExec().newConfigSource()
+                .set("name", "value")
+                .set("type", "long");
+        ConfigSource config = defaultConfig()
+                .set("common_columns", Arrays.asList("user_id"))
+                .setNested("value_config", valueConfig)
+                .setNested("where", where);
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("age", Types.LONG)
+                .add("height", Types.LONG)
+                .add("score_math", Types.LONG)
+                .add("score_art", Types.LONG)
+                .build();
+
+        applyFilter(config, inputSchema, Arrays.asList("user-123", 20L, 170L, 0L, 99L, "user-124", null, 160L, 120L, 1L), (pageReader, pageOutput) -> {
+            pageReader.setPage(pageOutput.pages.get(0));
+            assertTrue(pageReader.nextRecord());
+            assertEquals("user-123", pageReader.getString(0));
+            assertEquals("age", pageReader.getString(1));
+            assertEquals(20L, pageReader.getLong(2));
+            assertTrue(pageReader.nextRecord());
+            assertEquals("user-123", pageReader.getString(0));
+            assertEquals("score_art", pageReader.getString(1));
+            assertEquals(99L, pageReader.getLong(2));
+            assertTrue(pageReader.nextRecord());
+            assertEquals("user-124", pageReader.getString(0));
+            assertEquals("score_art", pageReader.getString(1));
+            assertEquals(1L, pageReader.getLong(2));
+            assertFalse(pageReader.nextRecord());
+        });
+    }
+
+    @Test
+    public void testWhereKeysArePrunedAtTransaction()
+    {
+        ConfigSource config = defaultConfig()
+                .set("common_columns", Arrays.asList("user_id"))
+                .set("key_config", runtime.getExec().newConfigSource().set("name", "key").set("type", "long"))
+                .set("key_mapping", Collections.singletonMap("phone", "100"))
+                .set("where", runtime.getExec().newConfigSource().set("keys", Arrays.asList("100")));
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("city", Types.STRING)
+                .add("phone", Types.STRING)
+                .build();
+
+        plugin.transaction(config, inputSchema, (taskSource, outputSchema) -> {
+            final PluginTask task = TASK_MAPPER.map(taskSource, PluginTask.class);
+            assertEquals(1, task.getPlan().getExpandingColumns().size());
+            assertEquals("phone", task.getPlan().getExpandingColumns().get(0).getName());
+            assertEquals(Collections.singletonList(100L), task.getPlan().getKeyCodes());
+        });
+    }
+
+    @Test
+    public void testWhereUnsupportedOperator()
+    {
+        ConfigSource config = defaultConfig()
+                .set("where", runtime.getExec().newConfigSource().set("values", Arrays.asList(
+                        runtime.getExec().newConfigSource().set("operator", ">").set("value", "0"))));
+        final Schema inputSchema = Schema.builder()
+                .add("attrs", Types.JSON)
+                .build();
+
+        thrown.expect(ConfigException.class);
+        plugin.transaction(config, inputSchema, (taskSource, outputSchema) -> {
+        });
+    }
+
+    @Test
+    public void testBatchTypedValueColumns()
+    {
+        ConfigSource config = defaultConfig()
+                .set("common_columns", Arrays.asList("user_id"))
+                .set("value_mode", "typed_columns")
+                .set("batch", true)
+                .setNested("skip_values", runtime.getExec().newConfigSource().set("null", true));
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("city", Types.STRING)
+                .add("age", Types.LONG)
+                .build();
+
+        applyFilter(config, inputSchema, Arrays.asList("user-123", "Tokyo", 20L, "user-124", null, 30L), (pageReader, pageOutput) -> {
+            assertEquals(1, pageOutput.pages.size());
+            pageReader.setPage(pageOutput.pages.get(0));
+            assertTrue(pageReader.nextRecord());
+            assertEquals("user-123", pageReader.getString(0));
+            assertEquals("city", pageReader.getString(1));
+            assertEquals("Tokyo", pageReader.getString(2));
+            assertTrue(pageReader.isNull(3));
+            assertTrue(pageReader.nextRecord());
+            assertEquals("user-123", pageReader.getString(0));
+            assertEquals("age", pageReader.getString(1));
+            assertTrue(pageReader.isNull(2));
+            assertEquals(20L, pageReader.getLong(3));
+            assertTrue(pageReader.nextRecord());
+            assertEquals("user-124", pageReader.getString(0));
+            assertEquals("age", pageReader.getString(1));
+            assertEquals(30L, pageReader.getLong(3));
+            assertFalse(pageReader.nextRecord());
+        });
+    }
+
+    @Test
+    public void testBatchReusesBuffersAcrossPages()
+    {
+        ConfigSource config = defaultConfig()
+                .set("common_columns", Arrays.asList("id"))
+                .set("value_config", runtime.getExec().newConfigSource().set("name", "value").set("type", "long"))
+                .set("batch", true)
+                .setNested("skip_values", runtime.getExec().newConfigSource().set("zero", true));
+        final Schema inputSchema = Schema.builder()
+                .add("id", Types.LONG)
+                .add("a", Types.LONG)
+                .add("b", Types.LONG)
+                .build();
+
+        plugin.transaction(config, inputSchema, (taskSource, outputSchema) -> {
+            final MockPageOutput filteredOutput = new MockPageOutput();
+            PageOutput pageOutput = plugin.open(taskSource, inputSchema, outputSchema, filteredOutput);
+            // Pages of different sizes, with more records than one word of the bitmaps
+            for (int size : new int[] {200, 70, 130}) {
+                final List<Object> values = new ArrayList<>();
+                for (long r = 0; r < size; r++) {
+                    values.add(r);
+                    values.add(r % 3 == 0 ? 0L : r);
+                    values.add(r % 2 == 0 ? null : -r);
+                }
+                for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), inputSchema, values.toArray())) {
+                    pageOutput.add(page);
+                }
+            }
+            pageOutput.finish();
+            pageOutput.close();
+
+            PageReader pageReader = new PageReader(outputSchema);
+            long rows = 0;
+            for (Page page : filteredOutput.pages) {
+                pageReader.setPage(page);
+                while (pageReader.nextRecord()) {
+                    final long id = pageReader.getLong(0);
+                    if (pageReader.getString(1).equals("a")) {
+                        assertEquals(id, pageReader.getLong(2));
+                    }
+                    else if (id % 2 == 0) {
+                        assertTrue(pageReader.isNull(2));
+                    }
+                    else {
+                        assertEquals(-id, pageReader.getLong(2));
+                    }
+                    rows++;
+                }
+            }
+            long expected = 0;
+            for (int size : new int[] {200, 70, 130}) {
+                for (long r = 0; r < size; r++) {
+                    expected += r % 3 == 0 ? 1 : 2;
+                }
+            }
+            assertEquals(expected, rows);
+        });
+    }
+
+    @Test
+    public void testBatchWithCoerceIsRejected()
+    {
+        ConfigSource config = defaultConfig()
+                .set("value_mode", "coerce")
+                .set("batch", true);
+        final Schema inputSchema = Schema.builder()
+                .add("age", Types.LONG)
+                .build();
+
+        thrown.expect(ConfigException.class);
+        plugin.transaction(config, inputSchema, (taskSource, outputSchema) -> {
+        });
+    }
+
+    @Test
+    public void testTimestampColumnsAsInstant()
+    {
+        ConfigSource config = defaultConfig()
+                .set("common_columns", Arrays.asList("logged_at"))
+                .set("value_mode", "typed_columns");
+        final Schema inputSchema = Schema.builder()
+                .add("logged_at", Types.TIMESTAMP)
+                .add("created_at", Types.TIMESTAMP)
+                .add("updated_at", Types.TIMESTAMP)
+                .build();
+        final Instant loggedAt = Instant.ofEpochSecond(1600000000L, 123456789);
+        final Instant createdAt = Instant.ofEpochSecond(-1L, 1);
+
+        // PageTestUtils of Embulk-0.9.x builds timestamps from the deprecated Timestamp
+        applyFilter(config, inputSchema, Arrays.asList(org.embulk.spi.time.Timestamp.ofInstant(loggedAt), org.embulk.spi.time.Timestamp.ofInstant(createdAt), null), (pageReader, pageOutput) -> {
+            pageReader.setPage(pageOutput.pages.get(0));
+            assertTrue(pageReader.nextRecord());
+            assertEquals(loggedAt, pageReader.getTimestampInstant(0));
+            assertEquals("created_at", pageReader.getString(1));
+            assertEquals(createdAt, pageReader.getTimestampInstant(2));
+            assertTrue(pageReader.nextRecord());
+            assertEquals(loggedAt, pageReader.getTimestampInstant(0));
+            assertEquals("updated_at", pageReader.getString(1));
+            assertTrue(pageReader.isNull(2));
+            assertFalse(pageReader.nextRecord());
+        });
+    }
+
+    @Test
+    public void testGroupKeysWithinWindow()
+    {
+        ConfigSource config = defaultConfig()
+                .set("common_columns", Arrays.asList("user_id"))
+                .setNested("group_keys", runtime.getExec().newConfigSource().set("window_records", 2));
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("city", Types.STRING)
+                .add("phone", Types.STRING)
+                .build();
+
+        applyFilter(config, inputSchema, Arrays.asList(
+                "user-1", "Tokyo", "080",
+                "user-2", "Osaka", "090",
+                "user-3", "Kyoto", "070"), (pageReader, pageOutput) -> {
+                    final List<String> rows = new ArrayList<>();
+                    for (Page page : pageOutput.pages) {
+                        pageReader.setPage(page);
+                        while (pageReader.nextRecord()) {
+                            rows.add(pageReader.getString(0) + ":" + pageReader.getString(1) + "=" + pageReader.getString(2));
+                        }
+                    }
+                    assertEquals(Arrays.asList(
+                            "user-1:city=Tokyo", "user-2:city=Osaka", "user-1:phone=080", "user-2:phone=090",
+                            "user-3:city=Kyoto", "user-3:phone=070"), rows);
+                });
+    }
+
+    @Test
+    public void testChangesAgainstPreviousRun()
+    {
+        final File snapshot = new File(temporaryFolder.getRoot(), "pivot.snapshot");
+        ConfigSource config = defaultConfig()
+                .set("common_columns", Arrays.asList("user_id"))
+                .setNested("skip_values", runtime.getExec().newConfigSource().set("null", true))
+                .setNested("changes", runtime.getExec().newConfigSource().set("snapshot_path", snapshot.getPath()).set("capacity", 100));
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("city", Types.STRING)
+                .add("phone", Types.STRING)
+                .build();
+
+        assertEquals(Arrays.asList("user-1:city=Tokyo:insert", "user-1:phone=080:insert", "user-2:city=Osaka:insert"),
+                collectChanges(config, inputSchema, "user-1", "Tokyo", "080", "user-2", "Osaka", null));
+        assertTrue(snapshot.exists());
+        assertEquals(Arrays.asList("user-1:phone=null:delete", "user-2:city=Kyoto:update", "user-3:city=Nara:insert"),
+                collectChanges(config, inputSchema, "user-1", "Tokyo", null, "user-2", "Kyoto", null, "user-3", "Nara", null));
+        // The previous snapshot is read with its own capacity
+        final ConfigSource resized = config.deepCopy()
+                .setNested("changes", runtime.getExec().newConfigSource().set("snapshot_path", snapshot.getPath()).set("capacity", 5000));
+        assertEquals(Collections.emptyList(),
+                collectChanges(resized, inputSchema, "user-1", "Tokyo", null, "user-2", "Kyoto", null, "user-3", "Nara", null));
+        assertFalse(new File(snapshot.getPath() + ".work").exists());
+    }
+
+    @Test
+    public void testChangesDeletesCellsMissingFromTheRun() throws IOException
+    {
+        final File snapshot = new File(temporaryFolder.getRoot(), "pivot.snapshot");
+        final File deletes = new File(temporaryFolder.getRoot(), "deletes.jsonl");
+        ConfigSource config = defaultConfig()
+                .set("common_columns", Arrays.asList("user_id", "team"))
+                .setNested("changes", runtime.getExec().newConfigSource()
+                        .set("snapshot_path", snapshot.getPath())
+                        .set("deletes_path", deletes.getPath())
+                        .set("capacity", 1000));
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("team", Types.LONG)
+                .add("city", Types.STRING)
+                .build();
+
+        assertEquals(Arrays.asList("user-1:city=Tokyo:insert", "user-2:city=Osaka:insert"),
+                collectChanges(config, inputSchema, "user-1", 1L, "Tokyo", "user-2", 1L, "Osaka"));
+        assertEquals(Collections.emptyList(), Files.readAllLines(deletes.toPath()));
+
+        // user-2 is missing and the team of user-1 has changed
+        assertEquals(Collections.singletonList("user-1:city=Tokyo:insert"),
+                collectChanges(config, inputSchema, "user-1", 2L, "Tokyo"));
+        assertEquals(Arrays.asList(
+                "{\"user_id\":\"user-1\",\"team\":1,\"key\":\"city\",\"change\":\"delete\"}",
+                "{\"user_id\":\"user-2\",\"team\":1,\"key\":\"city\",\"change\":\"delete\"}"),
+                Files.readAllLines(deletes.toPath()).stream().sorted().collect(Collectors.toList()));
+
+        // The snapshot holds only the cells of the last run, so it does not fill up over runs
+        for (int run = 0; run < 5; run++) {
+            final List<Object> values = new ArrayList<>();
+            for (int user = 0; user < 800; user++) {
+                values.addAll(Arrays.asList("run-" + run + "-user-" + user, 1L, "Tokyo"));
+            }
+            assertEquals(800, collectChanges(config, inputSchema, values.toArray()).size());
+            assertEquals(run == 0 ? 1 : 800, Files.readAllLines(deletes.toPath()).size());
+        }
+    }
+
+    @Test
+    public void testChangesDeletesEveryCellOfAMissingEntity() throws IOException
+    {
+        final File snapshot = new File(temporaryFolder.getRoot(), "pivot.snapshot");
+        final File deletes = new File(temporaryFolder.getRoot(), "deletes.jsonl");
+        ConfigSource config = defaultConfig()
+                .set("common_columns", Arrays.asList("user_id"))
+                .setNested("changes", runtime.getExec().newConfigSource()
+                        .set("snapshot_path", snapshot.getPath())
+                        .set("deletes_path", deletes.getPath()));
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("city", Types.STRING)
+                .add("phone", Types.STRING)
+                .build();
+
+        assertEquals(4, collectChanges(config, inputSchema, "user-1", "Tokyo", "080", "user-2", "Osaka", "090").size());
+        assertEquals(Collections.emptyList(),
+                collectChanges(config, inputSchema, "user-2", "Osaka", "090"));
+        assertEquals(Arrays.asList(
+                "{\"user_id\":\"user-1\",\"key\":\"city\",\"change\":\"delete\"}",
+                "{\"user_id\":\"user-1\",\"key\":\"phone\",\"change\":\"delete\"}"),
+                Files.readAllLines(deletes.toPath()).stream().sorted().collect(Collectors.toList()));
+    }
+
+    @Test
+    public void testChangesSnapshotIsKeptOnFailure()
+    {
+        final File snapshot = new File(temporaryFolder.getRoot(), "pivot.snapshot");
+        ConfigSource config = defaultConfig()
+                .set("common_columns", Arrays.asList("user_id"))
+                .setNested("changes", runtime.getExec().newConfigSource().set("snapshot_path", snapshot.getPath()));
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("city", Types.STRING)
+                .build();
+
+        collectChanges(config, inputSchema, "user-1", "Tokyo");
+        try {
+            plugin.transaction(config, inputSchema, (taskSource, outputSchema) -> {
+                PageOutput pageOutput = plugin.open(taskSource, inputSchema, outputSchema, new MockPageOutput());
+                for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), inputSchema, "user-1", "Osaka")) {
+                    pageOutput.add(page);
+                }
+                pageOutput.close();
+                throw new IllegalStateException("failed");
+            });
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(Collections.singletonList("user-1:city=Osaka:update"), collectChanges(config, inputSchema, "user-1", "Osaka"));
+    }
+
+    @Test
+    public void testChangesWithPipelineIsRejected()
+    {
+        ConfigSource config = defaultConfig()
+                .setNested("pipeline", runtime.getExec().newConfigSource().set("workers", 2))
+                .setNested("changes", runtime.getExec().newConfigSource()
+                        .set("snapshot_path", new File(temporaryFolder.getRoot(), "pivot.snapshot").getPath()));
+        final Schema inputSchema = Schema.builder()
+                .add("city", Types.STRING)
+                .build();
+
+        thrown.expect(ConfigException.class);
+        plugin.transaction(config, inputSchema, (taskSource, outputSchema) -> {
+        });
+    }
+
+    @Test
+    public void testChangesRejectsTasksOutsideTheTransactionProcess()
+    {
+        ConfigSource config = defaultConfig()
+                .setNested("changes", runtime.getExec().newConfigSource()
+                        .set("snapshot_path", new File(temporaryFolder.getRoot(), "pivot.snapshot").getPath()));
+        final Schema inputSchema = Schema.builder()
+                .add("city", Types.STRING)
+                .build();
+        final TaskSource[] taskSource = new TaskSource[1];
+        final Schema[] outputSchema = new Schema[1];
+        plugin.transaction(config, inputSchema, (source, schema) -> {
+            taskSource[0] = source;
+            outputSchema[0] = schema;
+        });
+
+        // As a task on a remote executor, which does not share the snapshot of the transaction
+        thrown.expect(ConfigException.class);
+        plugin.open(taskSource[0], inputSchema, outputSchema[0], new MockPageOutput());
+    }
+
+    private List<String> collectChanges(ConfigSource config, Schema inputSchema, Object... values)
+    {
+        final List<String> rows = new ArrayList<>();
+        applyFilter(config, inputSchema, Arrays.asList(values), (pageReader, pageOutput) -> {
+            for (Page page : pageOutput.pages) {
+                pageReader.setPage(page);
+                final Schema schema = pageReader.getSchema();
+                final Column value = schema.lookupColumn("value");
+                while (pageReader.nextRecord()) {
+                    rows.add(pageReader.getString(schema.lookupColumn("user_id")) + ":" + pageReader.getString(schema.lookupColumn("key")) + "="
+                            + (pageReader.isNull(value) ? "null" : pageReader.getString(value)) + ":" + pageReader.getString(schema.lookupColumn("change")));
+                }
+            }
+        });
+        return rows;
+    }
+
+    @Test
+    public void testOutputPageMaxRows()
+    {
+        ConfigSource config = defaultConfig()
+                .set("common_columns", Arrays.asList("user_id"))
+                .setNested("output_page", runtime.getExec().newConfigSource().set("max_rows", 4));
+        final Schema inputSchema = Schema.builder()
+                .add("user_id", Types.STRING)
+                .add("city", Types.STRING)
+                .add("phone", Types.STRING)
+                .build();
+
+        applyFilter(config, inputSchema, Arrays.asList("user-1", "Tokyo", "080", "user-2", "Osaka", "090", "user-3", "Kyoto", "070"),
+                (pageReader, pageOutput) -> {
+                    assertEquals(2, pageOutput.pages.size());
+                    assertEquals(4, PageReader.getRecordCount(pageOutput.pages.get(0)));
+                    assertEquals(2, PageReader.getRecordCount(pageOutput.pages.get(1)));
+                });
+    }
+
+    @Test
+    public void testOutputPageSizeAdaptsToExpansion()
+    {
+        // Not a power of two, so the buffers of the allocator are larger than the pages
+        final ConfigSource fixed = runtime.getExec().newConfigSource().set("page_size", 40000);
+        final List<Page> fixedPages = collectOutputPages(defaultConfig().set("common_columns", Arrays.asList("id")).setNested("output_page", fixed));
+        final List<Page> adaptivePages = collectOutputPages(defaultConfig().set("common_columns", Arrays.asList("id")));
+        // 50000 rows of 30 bytes: two row headers with a null bitmap byte, and the id, key and value columns
+        assertEquals((50000 + 1332) / 1333, fixedPages.size());
+        for (Page page : fixedPages) {
+            assertTrue(page.buffer().limit() + " bytes", page.buffer().limit() <= 40000);
+        }
+        assertTrue(fixedPages.size() + " pages with a fixed size, " + adaptivePages.size() + " adaptive", adaptivePages.size() * 2 < fixedPages.size());
+    }
+
+    @Test
+    public void testOutputPageSizeBelowMinimumIsRejected()
+    {
+        final ConfigSource outputPage = runtime.getExec().newConfigSource().set("page_size", OutputPaging.MIN_PAGE_SIZE - 1);
+
+        thrown.expect(ConfigException.class);
+        collectOutputPages(defaultConfig().set("common_columns", Arrays.asList("id")).setNested("output_page", outputPage));
+    }
+
+    // 5 input pages of 100 records with 100 long columns
+    private List<Page> collectOutputPages(ConfigSource config)
+    {
+        final Schema.Builder builder = Schema.builder().add("id", Types.LONG);
+        for (int c = 0; c < 100; c++) {
+            builder.add("c" + c, Types.LONG);
+        }
+        final Schema inputSchema = builder.build();
+        final List<Page> pages = new ArrayList<>();
+        plugin.transaction(config.set("value_config", runtime.getExec().newConfigSource().set("name", "value").set("type", "long")),
+                inputSchema, (taskSource, outputSchema) -> {
+                    final MockPageOutput filteredOutput = new MockPageOutput();
+                    PageOutput pageOutput = plugin.open(taskSource, inputSchema, outputSchema, filteredOutput);
+                    for (int p = 0; p < 5; p++) {
+                        final List<Object> values = new ArrayList<>();
+                        for (long r = 0; r < 100; r++) {
+                            for (long c = 0; c <= 100; c++) {
+                                values.add(r * c);
+                            }
+                        }
+                        for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), inputSchema, values.toArray())) {
+                            pageOutput.add(page);
+                        }
+                    }
+                    pageOutput.finish();
+                    pageOutput.close();
+                    pages.addAll(filteredOutput.pages);
+                });
+        return pages;
+    }
+
+    // Counts buffers that have not been released yet
+    private static class TrackingBufferAllocator implements BufferAllocator
+    {
+        private final BufferAllocator delegate;
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        TrackingBufferAllocator(BufferAllocator delegate)
+        {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Buffer allocate()
+        {
+            return track(delegate.allocate());
+        }
+
+        @Override
+        public Buffer allocate(int minimumCapacity)
+        {
+            return track(delegate.allocate(minimumCapacity));
+        }
+
+        private Buffer track(Buffer buffer)
+        {
+            outstanding.incrementAndGet();
+            return new Buffer()
+            {
+                @Override
+                public byte[] array()
+                {
+                    return buffer.array();
+                }
+
+                @Override
+                public int offset()
+                {
+                    return buffer.offset();
+                }
+
+                @Override
+                public Buffer offset(int offset)
+                {
+                    buffer.offset(offset);
+                    return this;
+                }
+
+                @Override
+                public int limit()
+                {
+                    return buffer.limit();
+                }
+
+                @Override
+                public Buffer limit(int limit)
+                {
+                    buffer.limit(limit);
+                    return this;
+                }
+
+                @Override
+                public int capacity()
+                {
+                    return buffer.capacity();
+                }
+
+                @Override
+                public void setBytes(int index, byte[] source, int sourceIndex, int length)
+                {
+                    buffer.setBytes(index, source, sourceIndex, length);
+                }
+
+                @Override
+                public void setBytes(int index, Buffer source, int sourceIndex, int length)
+                {
+                    buffer.setBytes(index, source, sourceIndex, length);
+                }
+
+                @Override
+                public void getBytes(int index, byte[] dest, int destIndex, int length)
+                {
+                    buffer.getBytes(index, dest, destIndex, length);
+                }
+
+                @Override
+                public void getBytes(int index, Buffer dest, int destIndex, int length)
+                {
+                    buffer.getBytes(index, dest, destIndex, length);
+                }
+
+                @Override
+                public void release()
+                {
+                    outstanding.decrementAndGet();
+                    buffer.release();
+                }
+            };
+        }
+    }
 }
@@ -0,0 +1,657 @@
+package net.okkez.embulk.filter.pivot;
+
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigSource;
+import org.embulk.spi.Column;
+import org.embulk.spi.Exec;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Type;
+import org.embulk.spi.type.Types;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.msgpack.value.Value;
+import org.msgpack.value.ValueFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Runs millions of synthetic cells through the filter and checks the output checksum,
+// the bytes allocated by the filter per output row and the heap retained after each run.
+// Run with: ./gradlew volumeTest [-PvolumeCells=10000000]
+public class TestPivotVolume
+{
+    private static final Logger log = LoggerFactory.getLogger(TestPivotVolume.class);
+    private static final long CELLS = Long.getLong("pivot.volume.cells", 10_000_000L);
+    private static final long MAX_RETAINED_HEAP_BYTES = 64L * 1024 * 1024;
+    private static final String[] STRINGS = new String[1024];
+
+    static {
+        for (int i = 0; i < STRINGS.length; i++) {
+            STRINGS[i] = (i % 8 == 0 ? "\u6771\u4eac-" : "value-") + i;
+        }
+    }
+
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private PivotFilterPlugin plugin;
+
+    @Before
+    public void createResources()
+    {
+        plugin = new PivotFilterPlugin();
+    }
+
+    // Input record generator and the output rows expected for each record
+    private abstract static class Case
+    {
+        final Schema schema;
+        final long records;
+
+        Case(Schema schema, long records)
+        {
+            this.schema = schema;
+            this.records = records;
+        }
+
+        abstract void write(long record, PageBuilder builder);
+
+        abstract void expect(long record, Checksum expected);
+    }
+
+    @Test
+    public void testWideStringColumns()
+    {
+        final int columns = 100;
+        final Schema.Builder builder = Schema.builder().add("user_id", Types.STRING).add("day", Types.LONG);
+        for (int c = 0; c < columns; c++) {
+            builder.add(String.format("c%03d", c), Types.STRING);
+        }
+        run(config().set("common_columns", Arrays.asList("user_id", "day")), wideStrings(builder.build(), columns), 64);
+    }
+
+    @Test
+    public void testPipelinedWideStringColumns()
+    {
+        final int columns = 100;
+        final Schema.Builder builder = Schema.builder().add("user_id", Types.STRING).add("day", Types.LONG);
+        for (int c = 0; c < columns; c++) {
+            builder.add(String.format("c%03d", c), Types.STRING);
+        }
+        // Rows are built on worker threads, which the allocation counter of this thread does not see.
+        run(config()
+                .set("common_columns", Arrays.asList("user_id", "day"))
+                .setNested("pipeline", runtime.getExec().newConfigSource().set("workers", 2)),
+                wideStrings(builder.build(), columns), -1);
+    }
+
+    @Test
+    public void testBatchWideStringColumns()
+    {
+        final int columns = 100;
+        final Schema.Builder builder = Schema.builder().add("user_id", Types.STRING).add("day", Types.LONG);
+        for (int c = 0; c < columns; c++) {
+            builder.add(String.format("c%03d", c), Types.STRING);
+        }
+        run(config().set("common_columns", Arrays.asList("user_id", "day")).set("batch", true), wideStrings(builder.build(), columns), 64);
+    }
+
+    @Test
+    public void testGroupKeysWideStringColumns()
+    {
+        final int columns = 100;
+        final Schema.Builder builder = Schema.builder().add("user_id", Types.STRING).add("day", Types.LONG);
+        for (int c = 0; c < columns; c++) {
+            builder.add(String.format("c%03d", c), Types.STRING);
+        }
+        run(config()
+                .set("common_columns", Arrays.asList("user_id", "day"))
+                .setNested("group_keys", runtime.getExec().newConfigSource().set("window_records", 5000).set("window_bytes", 8L * 1024 * 1024)),
+                wideStrings(builder.build(), columns), 64);
+    }
+
+    private Case wideStrings(Schema schema, int columns)
+    {
+        return new Case(schema, CELLS / columns)
+        {
+            @Override
+            void write(long r, PageBuilder b)
+            {
+                b.setString(0, STRINGS[(int) (r % STRINGS.length)]);
+                b.setLong(1, r / 1000);
+                for (int c = 0; c < columns; c++) {
+                    if (isNull(r, c, 10)) {
+                        b.setNull(2 + c);
+                    }
+                    else {
+                        b.setString(2 + c, string(r, c));
+                    }
+                }
+            }
+
+            @Override
+            void expect(long r, Checksum expected)
+            {
+                for (int c = 0; c < columns; c++) {
+                    expected.add(STRINGS[(int) (r % STRINGS.length)], r / 1000, schema.getColumnName(2 + c),
+                            isNull(r, c, 10) ? null : string(r, c));
+                }
+            }
+        };
+    }
+
+    @Test
+    public void testAllTypesWithTypedColumns()
+    {
+        final List<Type> types = Arrays.asList(Types.BOOLEAN, Types.LONG, Types.DOUBLE, Types.STRING, Types.TIMESTAMP, Types.JSON);
+        // Output value columns are ordered string, long, double, boolean, timestamp and json
+        final int[] outputSlots = {3, 1, 2, 0, 4, 5};
+        final Schema.Builder builder = Schema.builder().add("id", Types.LONG);
+        for (Type type : types) {
+            builder.add("v_" + type.getName(), type);
+        }
+        final Schema schema = builder.build();
+        run(config().set("common_columns", Collections.singletonList("id")).set("value_mode", "typed_columns"),
+                new Case(schema, CELLS / types.size())
+                {
+                    @Override
+                    void write(long r, PageBuilder b)
+                    {
+                        b.setLong(0, r);
+                        for (int c = 0; c < types.size(); c++) {
+                            setValue(b, 1 + c, types.get(c), isNull(r, c, 20) ? null : value(types.get(c), r, c));
+                        }
+                    }
+
+                    @Override
+                    void expect(long r, Checksum expected)
+                    {
+                        for (int c = 0; c < types.size(); c++) {
+                            final Object[] row = new Object[8];
+                            row[0] = r;
+                            row[1] = schema.getColumnName(1 + c);
+                            if (!isNull(r, c, 20)) {
+                                row[2 + outputSlots[c]] = value(types.get(c), r, c);
+                            }
+                            expected.add(row);
+                        }
+                    }
+                }, 160);
+    }
+
+    @Test
+    public void testCoerceAndSkipValues()
+    {
+        final int columns = 20;
+        final Schema.Builder builder = Schema.builder().add("id", Types.LONG);
+        for (int c = 0; c < columns; c++) {
+            builder.add("l" + c, Types.LONG);
+        }
+        final Schema schema = builder.build();
+        run(config()
+                .set("common_columns", Collections.singletonList("id"))
+                .set("value_mode", "coerce")
+                .setNested("skip_values", runtime.getExec().newConfigSource().set("null", true).set("zero", true)),
+                new Case(schema, CELLS / columns)
+                {
+                    @Override
+                    void write(long r, PageBuilder b)
+                    {
+                        b.setLong(0, r);
+                        for (int c = 0; c < columns; c++) {
+                            if (isNull(r, c, 10)) {
+                                b.setNull(1 + c);
+                            }
+                            else {
+                                b.setLong(1 + c, smallLong(r, c));
+                            }
+                        }
+                    }
+
+                    @Override
+                    void expect(long r, Checksum expected)
+                    {
+                        for (int c = 0; c < columns; c++) {
+                            if (!isNull(r, c, 10) && smallLong(r, c) != 0) {
+                                expected.add(r, schema.getColumnName(1 + c), Long.toString(smallLong(r, c)));
+                            }
+                        }
+                    }
+                }, 96);
+    }
+
+    @Test
+    public void testLongKeyWithKeyMapping()
+    {
+        final int columns = 10;
+        final Schema.Builder builder = Schema.builder().add("id", Types.LONG);
+        for (int c = 0; c < columns; c++) {
+            builder.add("d" + c, Types.DOUBLE);
+        }
+        run(config()
+                .set("common_columns", Collections.singletonList("id"))
+                .set("key_config", runtime.getExec().newConfigSource().set("name", "key").set("type", "long"))
+                .set("value_config", runtime.getExec().newConfigSource().set("name", "value").set("type", "double"))
+                .set("key_mapping", Collections.singletonMap("d0", "100")),
+                new Case(builder.build(), CELLS / columns)
+                {
+                    @Override
+                    void write(long r, PageBuilder b)
+                    {
+                        b.setLong(0, r);
+                        for (int c = 0; c < columns; c++) {
+                            b.setDouble(1 + c, (Double) value(Types.DOUBLE, r, c));
+                        }
+                    }
+
+                    @Override
+                    void expect(long r, Checksum expected)
+                    {
+                        for (int c = 0; c < columns; c++) {
+                            expected.add(r, c == 0 ? 100L : (long) (1 + c), value(Types.DOUBLE, r, c));
+                        }
+                    }
+                }, 32);
+    }
+
+    @Test
+    public void testMeasurePattern()
+    {
+        final Schema.Builder builder = Schema.builder().add("id", Types.LONG);
+        for (int q = 1; q <= 4; q++) {
+            builder.add("q" + q + "_sales", Types.LONG).add("q" + q + "_cost", Types.DOUBLE);
+        }
+        run(config()
+                .set("common_columns", Collections.singletonList("id"))
+                .set("measure_pattern", "(?<period>q\\d)_(?<measure>\\w+)"),
+                new Case(builder.build(), CELLS / 8)
+                {
+                    @Override
+                    void write(long r, PageBuilder b)
+                    {
+                        b.setLong(0, r);
+                        for (int c = 0; c < 8; c++) {
+                            setValue(b, 1 + c, c % 2 == 0 ? Types.LONG : Types.DOUBLE,
+                                    isNull(r, c, 10) ? null : value(c % 2 == 0 ? Types.LONG : Types.DOUBLE, r, c));
+                        }
+                    }
+
+                    @Override
+                    void expect(long r, Checksum expected)
+                    {
+                        for (int q = 0; q < 4; q++) {
+                            expected.add(r, "q" + (q + 1),
+                                    isNull(r, 2 * q, 10) ? null : value(Types.LONG, r, 2 * q),
+                                    isNull(r, 2 * q + 1, 10) ? null : value(Types.DOUBLE, r, 2 * q + 1));
+                        }
+                    }
+                }, 64);
+    }
+
+    @Test
+    public void testJsonToLong()
+    {
+        final int entries = 10;
+        final Schema schema = Schema.builder().add("id", Types.LONG).add("attrs", Types.JSON).build();
+        run(config()
+                .set("mode", "json_to_long")
+                .set("common_columns", Collections.singletonList("id"))
+                .set("json_column", "attrs")
+                .set("value_config", runtime.getExec().newConfigSource().set("name", "value").set("type", "json")),
+                new Case(schema, CELLS / entries)
+                {
+                    @Override
+                    void write(long r, PageBuilder b)
+                    {
+                        final Value[] kvs = new Value[entries * 2];
+                        for (int c = 0; c < entries; c++) {
+                            kvs[2 * c] = ValueFactory.newString("a" + c);
+                            kvs[2 * c + 1] = attribute(r, c);
+                        }
+                        b.setLong(0, r);
+                        b.setJson(1, ValueFactory.newMap(kvs));
+                    }
+
+                    @Override
+                    void expect(long r, Checksum expected)
+                    {
+                        for (int c = 0; c < entries; c++) {
+                            expected.add(r, "a" + c, attribute(r, c));
+                        }
+                    }
+
+                    private Value attribute(long r, int c)
+                    {
+                        if (c % 3 == 0) {
+                            return ValueFactory.newInteger(smallLong(r, c));
+                        }
+                        if (c % 3 == 1) {
+                            return ValueFactory.newString(string(r, c));
+                        }
+                        return ValueFactory.newArray(ValueFactory.newInteger(c), ValueFactory.newBoolean(r % 2 == 0));
+                    }
+                }, 64);
+    }
+
+    // Each output row consumes 10 input records here, and the spilled variant also writes and reads every record once
+    @Test
+    public void testLongToWideSorted()
+    {
+        run(longToWideConfig(), longToWide(false), 256);
+    }
+
+    @Test
+    public void testLongToWideUnsortedWithSpill()
+    {
+        run(longToWideConfig().set("sorted", false).set("memory_budget", 16L * 1024 * 1024), longToWide(true), 8192);
+    }
+
+    private ConfigSource longToWideConfig()
+    {
+        final List<String> keys = new ArrayList<>();
+        for (int k = 0; k < 10; k++) {
+            keys.add("k" + k);
+        }
+        return config()
+                .set("mode", "long_to_wide")
+                .set("common_columns", Collections.singletonList("id"))
+                .set("keys", keys);
+    }
+
+    // 10 rows per entity. Missing values are given an undeclared key. Unsorted input visits all entities once per key.
+    private Case longToWide(boolean unsorted)
+    {
+        final Schema schema = Schema.builder().add("id", Types.LONG).add("key", Types.STRING).add("value", Types.STRING).build();
+        final long entities = CELLS / 10;
+        return new Case(schema, entities * 10)
+        {
+            @Override
+            void write(long r, PageBuilder b)
+            {
+                final long e = entity(r);
+                final int k = key(r);
+                b.setLong(0, e);
+                b.setString(1, isNull(e, k, 10) ? "unknown" : "k" + k);
+                b.setString(2, string(e, k));
+            }
+
+            @Override
+            void expect(long r, Checksum expected)
+            {
+                if (key(r) != 9) {
+                    return;
+                }
+                final long e = entity(r);
+                final Object[] row = new Object[11];
+                row[0] = e;
+                for (int k = 0; k < 10; k++) {
+                    row[1 + k] = isNull(e, k, 10) ? null : string(e, k);
+                }
+                expected.add(row);
+            }
+
+            private long entity(long r)
+            {
+                return unsorted ? r % entities : r / 10;
+            }
+
+            private int key(long r)
+            {
+                return (int) (unsorted ? r / entities : r % 10);
+            }
+        };
+    }
+
+    private ConfigSource config()
+    {
+        return runtime.getExec().newConfigSource().set("type", "pivot");
+    }
+
+    @SuppressWarnings("deprecation")
+    private void run(ConfigSource config, Case c, long maxBytesPerRow)
+    {
+        final long heapBefore = usedHeapAfterGc();
+        final Checksum expected = new Checksum();
+        for (long r = 0; r < c.records; r++) {
+            c.expect(r, expected);
+        }
+
+        final long[] filterBytes = new long[1];
+        final ChecksumPageOutput sink = new ChecksumPageOutput();
+        plugin.transaction(config, c.schema, (taskSource, outputSchema) -> {
+            // Keep compatibility with Embulk-0.9.x
+            sink.reader = new PageReader(outputSchema);
+            final PageOutput filter = plugin.open(taskSource, c.schema, outputSchema, sink);
+            final PageOutput measured = new PageOutput()
+            {
+                @Override
+                public void add(Page page)
+                {
+                    final long sinkBefore = sink.allocatedBytes;
+                    final long before = allocatedBytes();
+                    filter.add(page);
+                    filterBytes[0] += allocatedBytes() - before - (sink.allocatedBytes - sinkBefore);
+                }
+
+                @Override
+                public void finish()
+                {
+                    final long sinkBefore = sink.allocatedBytes;
+                    final long before = allocatedBytes();
+                    filter.finish();
+                    filterBytes[0] += allocatedBytes() - before - (sink.allocatedBytes - sinkBefore);
+                }
+
+                @Override
+                public void close()
+                {
+                    filter.close();
+                }
+            };
+            try (PageBuilder input = newPageBuilder(c.schema, measured)) {
+                for (long r = 0; r < c.records; r++) {
+                    c.write(r, input);
+                    input.addRecord();
+                }
+                input.finish();
+            }
+        });
+
+        assertEquals(expected.rows, sink.checksum.rows);
+        assertEquals(expected.sum, sink.checksum.sum);
+        final double bytesPerRow = (double) filterBytes[0] / Math.max(1, sink.checksum.rows);
+        log.info("{} input records, {} output rows, {} bytes allocated per output row",
+                c.records, sink.checksum.rows, String.format("%.1f", bytesPerRow));
+        if (maxBytesPerRow >= 0) {
+            assertTrue(String.format("%.1f bytes per row exceeds %d", bytesPerRow, maxBytesPerRow), bytesPerRow <= maxBytesPerRow);
+        }
+        final long retained = usedHeapAfterGc() - heapBefore;
+        assertTrue(String.format("%,d bytes of heap retained after the run", retained), retained < MAX_RETAINED_HEAP_BYTES);
+    }
+
+    @SuppressWarnings("deprecation")
+    private static PageBuilder newPageBuilder(Schema schema, PageOutput output)
+    {
+        // Keep compatibility with Embulk-0.9.x
+        return new PageBuilder(Exec.getBufferAllocator(), schema, output);
+    }
+
+    private static long allocatedBytes()
+    {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static long usedHeapAfterGc()
+    {
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    // Reads every output row as soon as a page is emitted, so the output is never kept in memory.
+    private static class ChecksumPageOutput implements PageOutput
+    {
+        private final Checksum checksum = new Checksum();
+        private PageReader reader;
+        private long allocatedBytes;
+
+        @Override
+        public void add(Page page)
+        {
+            final long before = allocatedBytes();
+            reader.setPage(page);
+            final Object[] row = new Object[reader.getSchema().getColumnCount()];
+            while (reader.nextRecord()) {
+                for (Column column : reader.getSchema().getColumns()) {
+                    row[column.getIndex()] = read(reader, column);
+                }
+                checksum.add(row);
+            }
+            allocatedBytes += allocatedBytes() - before;
+        }
+
+        @Override
+        public void finish()
+        {
+        }
+
+        @Override
+        public void close()
+        {
+            reader.close();
+        }
+    }
+
+    private static Object read(PageReader reader, Column column)
+    {
+        if (reader.isNull(column)) {
+            return null;
+        }
+        final Type type = column.getType();
+        if (Types.BOOLEAN.equals(type)) {
+            return reader.getBoolean(column);
+        }
+        if (Types.LONG.equals(type)) {
+            return reader.getLong(column);
+        }
+        if (Types.DOUBLE.equals(type)) {
+            return reader.getDouble(column);
+        }
+        if (Types.STRING.equals(type)) {
+            return reader.getString(column);
+        }
+        if (Types.TIMESTAMP.equals(type)) {
+            return reader.getTimestampInstant(column);
+        }
+        return reader.getJson(column);
+    }
+
+    // Order independent checksum of rows, so that output grouped in a different order still matches.
+    private static class Checksum
+    {
+        private long rows;
+        private long sum;
+
+        void add(Object... row)
+        {
+            long h = 1;
+            for (Object value : row) {
+                h = 31 * h + Objects.hashCode(value);
+            }
+            sum += mix(h);
+            rows++;
+        }
+    }
+
+    private static void setValue(PageBuilder b, int index, Type type, Object value)
+    {
+        if (value == null) {
+            b.setNull(index);
+        }
+        else if (Types.BOOLEAN.equals(type)) {
+            b.setBoolean(index, (Boolean) value);
+        }
+        else if (Types.LONG.equals(type)) {
+            b.setLong(index, (Long) value);
+        }
+        else if (Types.DOUBLE.equals(type)) {
+            b.setDouble(index, (Double) value);
+        }
+        else if (Types.STRING.equals(type)) {
+            b.setString(index, (String) value);
+        }
+        else if (Types.TIMESTAMP.equals(type)) {
+            b.setTimestamp(index, (Instant) value);
+        }
+        else {
+            b.setJson(index, (Value) value);
+        }
+    }
+
+    private static Object value(Type type, long r, int c)
+    {
+        final long cell = cell(r, c);
+        if (Types.BOOLEAN.equals(type)) {
+            return (cell & 1) == 0;
+        }
+        if (Types.LONG.equals(type)) {
+            return cell;
+        }
+        if (Types.DOUBLE.equals(type)) {
+            return (cell >>> 11) * 0x1.0p-53;
+        }
+        if (Types.STRING.equals(type)) {
+            return string(r, c);
+        }
+        if (Types.TIMESTAMP.equals(type)) {
+            return Instant.ofEpochSecond(1_500_000_000L + Math.floorMod(cell, 100_000_000L), Math.floorMod(cell, 1_000_000_000L));
+        }
+        return ValueFactory.newMap(ValueFactory.newString("n"), ValueFactory.newInteger(Math.floorMod(cell, 1000)),
+                ValueFactory.newString("s"), ValueFactory.newString(string(r, c)));
+    }
+
+    private static boolean isNull(long r, int c, int percent)
+    {
+        return Math.floorMod(mix(cell(r, c) ^ 0x5bd1e995L), 100) < percent;
+    }
+
+    private static String string(long r, int c)
+    {
+        return STRINGS[(int) Math.floorMod(cell(r, c), (long) STRINGS.length)];
+    }
+
+    private static long smallLong(long r, int c)
+    {
+        return Math.floorMod(cell(r, c), 7L) == 0 ? 0 : Math.floorMod(cell(r, c), 100_000L);
+    }
+
+    private static long cell(long r, int c)
+    {
+        return mix(r * 1_000_003L + c);
+    }
+
+    // SplitMix64 finalizer
+    private static long mix(long x)
+    {
+        long z = x + 0x9e3779b97f4a7c15L;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}